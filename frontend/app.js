@@ -63,6 +63,9 @@ function pathForSource(source) {
     case 'month':
         return year + '-' + month;
         break;
+    case 'peaks':
+        return 'peaks';
+        break;
     case 'all':
     default:
         break;
@@ -74,7 +77,9 @@ function loadData(source, path) {
     var source = source || determineSource();
     var path = path || pathForSource(source);
     $.getJSON('data/' + path + '.json', function (data) {
-        if(data && data.length > 0) {
+        if(source === 'peaks' && data && data.heatmap) {
+            processPeaks(data);
+        } else if(data && data.length > 0) {
             processBandwidth(data, source);
             processSpeed(data, source);
         } else {
@@ -142,6 +147,38 @@ function calculateSpeed(source, pTime, cTimeStr, pUpload, cUpload, pDownload, cD
 
 
 
+function processPeaks(data) {
+    var days = ['Mon', 'Tue', 'Wed', 'Thu', 'Fri', 'Sat', 'Sun'];
+    var hmdata = [['Hour', 'Usage']];
+    $.each(data.heatmap, function (d, hours) {
+        $.each(hours, function (h, v) {
+            hmdata.push([days[d] + ' ' + addZ(h) + ':00', v]);
+        });
+    });
+    var hm = google.visualization.arrayToDataTable(hmdata);
+    formatter.format(hm, 1);
+    new google.visualization.ColumnChart(document.getElementById('chart_bw')).draw(hm, {
+        title: 'Usage by hour of week',
+        fontSize: '10',
+        legend: {position: 'none'}
+    });
+
+    var months = Object.keys(data.peaks);
+    var pkdata = [['Interval', 'Rate']];
+    if (months.length > 0) {
+        $.each(data.peaks[months[months.length - 1]], function (k, v) {
+            pkdata.push([new Date(v.start).toLocaleString() + ' - ' + new Date(v.end).toLocaleTimeString(), v.rate]);
+        });
+    }
+    var pk = google.visualization.arrayToDataTable(pkdata);
+    formatter.format(pk, 1, '/s');
+    new google.visualization.BarChart(document.getElementById('chart_sp')).draw(pk, {
+        title: 'Top peaks ' + (months.length > 0 ? months[months.length - 1] : ''),
+        fontSize: '10',
+        legend: {position: 'none'}
+    });
+}
+
 function byteFormatter(options) {
     var log1024 = Math.log(1024);
     this.scaleSuffix = ["B", "KB", "MB", "GB", "TB", "PB", "EB", "ZB", "YB"];
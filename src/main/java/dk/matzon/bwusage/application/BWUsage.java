@@ -1,15 +1,27 @@
 package dk.matzon.bwusage.application;
 
+import dk.matzon.bwusage.application.service.AggregatorImpl;
+import dk.matzon.bwusage.application.service.BatchForwarder;
+import dk.matzon.bwusage.application.service.DailyTotalsIndex;
+import dk.matzon.bwusage.application.service.DatabaseMaintenance;
 import dk.matzon.bwusage.application.service.DataGathererImpl;
+import dk.matzon.bwusage.application.service.DataImporterImpl;
+import dk.matzon.bwusage.application.service.PeakAnalytics;
+import dk.matzon.bwusage.application.service.QuotaTracker;
 import dk.matzon.bwusage.application.service.ReportGeneratorImpl;
+import dk.matzon.bwusage.domain.Aggregator;
 import dk.matzon.bwusage.domain.DataGatherer;
+import dk.matzon.bwusage.domain.DataImporter;
 import dk.matzon.bwusage.domain.ReportGenerator;
 import dk.matzon.bwusage.domain.Repository;
 import dk.matzon.bwusage.domain.model.BWEntry;
 import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWImportResult;
 import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
 import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWSiteEntryRepositoryImpl;
 import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -19,10 +31,14 @@ import org.hsqldb.lib.StopWatch;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
 import java.util.Properties;
 import java.util.Scanner;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -43,6 +59,25 @@ public class BWUsage {
 
     private DataGatherer dataGatherer;
 
+    private DataImporter dataImporter;
+
+    private QuotaTracker quotaTracker;
+
+    private DailyTotalsIndex totalsIndex;
+
+    private PeakAnalytics peakAnalytics;
+
+    private DatabaseMaintenance databaseMaintenance;
+
+    private BatchForwarder batchForwarder;
+
+    private Aggregator aggregator;
+
+    /**
+     * standalone (default), agent (forwards to an aggregator) or aggregator (combines agents instead of gathering)
+     */
+    private String mode;
+
     private volatile boolean active;
 
     private final StopWatch stopWatch;
@@ -50,7 +85,10 @@ public class BWUsage {
     public BWUsage() {
         active = false;
         properties = new Properties();
-        scheduledExecutorService = Executors.newScheduledThreadPool(2);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+        // the data gatherer reschedules itself, so pending one-shot jobs must not block shutdown
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduledExecutorService = executor;
         stopWatch = new StopWatch();
     }
 
@@ -61,22 +99,81 @@ public class BWUsage {
 
         InputStream configInputStream = BWUsage.class.getResourceAsStream("/config.properties");
         properties.load(configInputStream);
+        mode = properties.getProperty("app.mode", "standalone");
 
         // configure db
         stopWatch.zero();
         SessionFactory sessionFactory = HibernateUtil.getSessionFactory();
         repository = new BWEntryRepositoryImpl(sessionFactory);
         historicalRepository = new BWHistoricalEntryRepositoryImpl(sessionFactory);
+        if ("bounded".equals(properties.getProperty("app.memory"))) {
+            HibernateUtil.boundMemory(Integer.parseInt(properties.getProperty("db.cache.rows", "10000")), Integer.parseInt(properties.getProperty("db.cache.size", "4096")));
+        }
         LOGGER.info(stopWatch.currentElapsedTimeToMessage("Initialized DB"));
 
         // configure data gather
         dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
-        dataGatherer.init();
+
+        // configure quota tracking
+        quotaTracker = new QuotaTracker(repository, properties);
+        quotaTracker.init();
+        dataGatherer.addListener(quotaTracker);
+
+        // configure range totals
+        totalsIndex = new DailyTotalsIndex(repository);
+        dataGatherer.addListener(totalsIndex);
+
+        // configure peak analytics
+        peakAnalytics = new PeakAnalytics(historicalRepository, properties);
+        peakAnalytics.init();
+        dataGatherer.addListener(peakAnalytics);
+
+        // configure db maintenance, in the idle window after each gather
+        databaseMaintenance = new DatabaseMaintenance(scheduledExecutorService, properties);
+        dataGatherer.addListener(databaseMaintenance);
+
+        switch (mode) {
+            case "agent":
+                batchForwarder = new BatchForwarder(properties);
+                dataGatherer.addListener(batchForwarder);
+                batchForwarder.init();
+                dataGatherer.init();
+                break;
+            case "aggregator":
+                aggregator = new AggregatorImpl(repository, historicalRepository, new BWSiteEntryRepositoryImpl(sessionFactory), properties);
+                // ingested batches take the place of gathers
+                aggregator.addListener(quotaTracker);
+                aggregator.addListener(totalsIndex);
+                aggregator.addListener(peakAnalytics);
+                aggregator.init();
+                // without gathers there is no idle window, so maintain periodically
+                scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        databaseMaintenance.maintain(false);
+                    }
+                }, 1, Long.parseLong(properties.getProperty("maintenance.period", "60")), TimeUnit.MINUTES);
+                break;
+            default:
+                dataGatherer.init();
+                break;
+        }
 
         // configure report generator
-        reportGenerator = new ReportGeneratorImpl(scheduledExecutorService, repository, historicalRepository, properties);
+        reportGenerator = new ReportGeneratorImpl(scheduledExecutorService, repository, historicalRepository, properties, totalsIndex);
         reportGenerator.init();
 
+        // configure importer
+        dataImporter = new DataImporterImpl(repository, historicalRepository, properties);
+
+        // configure sealing of closed months, daily and once at startup
+        scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sealPartitions();
+            }
+        }, 0, TimeUnit.DAYS.toMinutes(1), TimeUnit.MINUTES);
+
         // configure backup
         scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
             @Override
@@ -95,12 +192,17 @@ public class BWUsage {
     }
 
     public boolean isRunning() {
+        if (aggregator != null) {
+            return reportGenerator.isRunning() && aggregator.isRunning();
+        }
         return reportGenerator.isRunning() && dataGatherer.isRunning();
     }
 
     private void handleCommand(String _command) {
         stopWatch.zero();
-        String command = _command.trim().toLowerCase();
+        String[] tokens = _command.trim().split("\\s+", 2);
+        String command = tokens[0].toLowerCase();
+        String argument = tokens.length > 1 ? tokens[1] : null;
         switch (command) {
             case "quit":
                 prepareShutdown();
@@ -109,9 +211,10 @@ public class BWUsage {
                 dataGatherer.downloadData();
                 break;
             case "report":
-                reportGenerator.generateReport(ReportGenerator.REPORT_TYPE.TODAY);
-                reportGenerator.generateReport(ReportGenerator.REPORT_TYPE.MONTH);
-                reportGenerator.generateReport(ReportGenerator.REPORT_TYPE.ALL);
+                reportGenerator.generateReports();
+                break;
+            case "rebuild":
+                reportGenerator.rebuildReports();
                 break;
             case "ltoday":
                 reportGenerator.list(ReportGenerator.REPORT_TYPE.TODAY);
@@ -125,6 +228,22 @@ public class BWUsage {
             case "backup":
                 HibernateUtil.backup();
                 break;
+            case "checkpoint":
+                databaseMaintenance.maintain(true);
+                databaseMaintenance.printStatus();
+                break;
+            case "maintenance":
+                databaseMaintenance.printStatus();
+                break;
+            case "quota":
+                quotaTracker.printStatus();
+                break;
+            case "sum":
+                sum(argument);
+                break;
+            case "import":
+                importData(argument);
+                break;
             case "help":
                 printCommands();
             default:
@@ -134,14 +253,70 @@ public class BWUsage {
         LOGGER.info(stopWatch.currentElapsedTimeToMessage("Processed command '" + command + "'"));
     }
 
+    private void sum(String _range) {
+        String[] dates = _range != null ? _range.trim().split("\\s+") : new String[0];
+        if (dates.length != 2) {
+            System.out.println("Usage: sum <from> <to>");
+            return;
+        }
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+            System.out.println(reportGenerator.sum(sdf.parse(dates[0]), sdf.parse(dates[1])));
+        } catch (ParseException _e) {
+            System.out.println("Invalid date: " + _e.getMessage());
+        }
+    }
+
+    private void importData(String _source) {
+        if (_source == null) {
+            System.out.println("Usage: import <file|dir>");
+            return;
+        }
+        try {
+            BWImportResult result = dataImporter.importData(new File(_source));
+            if (result.getSkippedFiles() > 0 || result.getRejectedRows() > 0) {
+                System.out.println(String.format("Warning: skipped %d unparseable files and rejected %d invalid rows", result.getSkippedFiles(), result.getRejectedRows()));
+            }
+            sealPartitions();
+            quotaTracker.init();
+            totalsIndex.rebuild();
+            peakAnalytics.init();
+        } catch (IOException _e) {
+            LOGGER.warn("Exception while importing '" + _source + "': " + _e.getMessage(), _e);
+            System.out.println("Import failed: " + _e.getMessage());
+        } finally {
+            // also after a failed import, whose earlier batches are stored
+            dataGatherer.invalidate();
+        }
+    }
+
+    /**
+     * Seals every month which closed more than app.partition.grace days ago, leaving recent months writable for
+     * the ISP's rolling window
+     */
+    private void sealPartitions() {
+        StopWatch sealStopWatch = new StopWatch();
+        int grace = Integer.parseInt(properties.getProperty("app.partition.grace", "7"));
+        Date before = DateUtils.truncate(DateUtils.addDays(new Date(), -grace), Calendar.MONTH);
+        int sealed = repository.seal(before) + historicalRepository.seal(before);
+        dataGatherer.invalidate();
+        LOGGER.info(sealStopWatch.currentElapsedTimeToMessage(String.format("Sealed %d rows before %s", sealed, before)));
+    }
+
     private void printCommands() {
         System.out.println("quit - exit application");
         System.out.println("gather - download data");
         System.out.println("report - generate all reports");
+        System.out.println("rebuild - regenerate every day and month report for the full history");
         System.out.println("ltoday - list bandwidth usage for today");
         System.out.println("lmonth - list bandwidth usage for the current month");
         System.out.println("lall - list bandwidth usage for all time");
         System.out.println("backup - perform a backup of the database");
+        System.out.println("checkpoint - checkpoint the database now, defragmenting if due");
+        System.out.println("maintenance - show database file sizes and maintenance statistics");
+        System.out.println("quota - show usage for the current month against the quota");
+        System.out.println("sum <from> <to> - total usage between two dates (yyyy-MM-dd, inclusive)");
+        System.out.println("import <file|dir> - import CSV or ISP JSON dumps");
         System.out.println();
     }
 
@@ -154,6 +329,12 @@ public class BWUsage {
         HibernateUtil.getSessionFactory().close();
         reportGenerator.shutdown();
         dataGatherer.shutdown();
+        if (batchForwarder != null) {
+            batchForwarder.shutdown();
+        }
+        if (aggregator != null) {
+            aggregator.shutdown();
+        }
     }
 
     private String timeForNextDataJob() {
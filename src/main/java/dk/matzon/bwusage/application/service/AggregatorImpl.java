@@ -0,0 +1,257 @@
+package dk.matzon.bwusage.application.service;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.matzon.bwusage.domain.Aggregator;
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWSiteEntry;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Aggregator side of federated collection, receiving batches from agents on POST /ingest.
+ * <p>
+ * Batches are decoded concurrently, at most federation.maxconcurrent at a time, beyond which agents get a 429 with a
+ * Retry-After. Batch ids already ingested are acknowledged without being applied again. Site entries are stored per
+ * site, and the combined usage of all sites is written to the regular daily table in bytes (plus a historical snapshot
+ * for today), so the standard reports cover all sites. Listeners are notified with the combined entries after each
+ * ingest, as they would be after a gather.
+ * <p>
+ * The aggregator listens on federation.bind, loopback unless configured otherwise. If federation.secret is configured,
+ * batches without it in the X-Federation-Secret header are rejected with a 401.
+ */
+public class AggregatorImpl implements Aggregator {
+
+    private final Logger LOGGER = LogManager.getLogger(AggregatorImpl.class);
+
+    private final Repository<BWEntry> repository;
+    private final Repository<BWHistoricalEntry> historicalRepository;
+    private final Repository<BWSiteEntry> siteRepository;
+    private final String bind;
+    private final int port;
+    private final byte[] secret;
+    private final int threads;
+    private final int retryAfter;
+    private final Semaphore permits;
+    private final Set<String> ingested;
+    private final List<GatherListener> listeners = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private ExecutorService executorService;
+    private volatile boolean running = false;
+
+    public AggregatorImpl(Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository, Repository<BWSiteEntry> _siteRepository, Properties _properties) {
+        repository = _repository;
+        historicalRepository = _historicalRepository;
+        siteRepository = _siteRepository;
+        bind = _properties.getProperty("federation.bind", "127.0.0.1");
+        port = Integer.parseInt(_properties.getProperty("federation.port", "8085"));
+        String secretProperty = _properties.getProperty("federation.secret");
+        secret = secretProperty != null ? secretProperty.getBytes(StandardCharsets.UTF_8) : null;
+        threads = Integer.parseInt(_properties.getProperty("federation.threads", "4"));
+        retryAfter = Integer.parseInt(_properties.getProperty("federation.retryafter", "30"));
+        permits = new Semaphore(Integer.parseInt(_properties.getProperty("federation.maxconcurrent", String.valueOf(threads))));
+        final int remembered = Integer.parseInt(_properties.getProperty("federation.batchids", "10000"));
+        ingested = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> _eldest) {
+                return size() > remembered;
+            }
+        }));
+    }
+
+    @Override
+    public void init() {
+        LOGGER.info(String.format("initializing on %s:%d", bind, port));
+        if (secret == null) {
+            LOGGER.warn("federation.secret is not configured, accepting batches from anyone who can reach " + bind);
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        } catch (IOException _e) {
+            throw new IllegalStateException("Unable to start aggregator on " + bind + ":" + port, _e);
+        }
+        executorService = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executorService);
+        server.createContext("/ingest", this::handle);
+        server.start();
+        running = true;
+    }
+
+    @Override
+    public void shutdown() {
+        LOGGER.info("shutting down");
+        running = false;
+        if (server != null) {
+            server.stop(1);
+            executorService.shutdown();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void addListener(GatherListener _listener) {
+        listeners.add(_listener);
+    }
+
+    /**
+     * @return port the aggregator listens on, useful when configured with port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange _exchange) throws IOException {
+        if (!"POST".equals(_exchange.getRequestMethod())) {
+            respond(_exchange, 405, "{}");
+            return;
+        }
+        if (!authorized(_exchange)) {
+            LOGGER.warn("Rejecting batch without a valid secret from " + _exchange.getRemoteAddress());
+            respond(_exchange, 401, "{}");
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            _exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+            respond(_exchange, 429, "{}");
+            return;
+        }
+        try {
+            String site;
+            String batchId;
+            List<BWEntry> entries;
+            try {
+                InputStream body = _exchange.getRequestBody();
+                if ("gzip".equalsIgnoreCase(_exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                JsonObject payload = new JsonParser().parse(new InputStreamReader(body, StandardCharsets.UTF_8)).getAsJsonObject();
+                site = payload.get("site").getAsString();
+                batchId = payload.get("batchId").getAsString();
+                entries = ResponseParser.parse(payload.get("entries").toString());
+            } catch (Exception _e) {
+                LOGGER.warn("Rejecting malformed batch: " + _e.getMessage());
+                respond(_exchange, 400, "{}");
+                return;
+            }
+
+            // claiming the id up front keeps a concurrent retry of the same batch from being applied twice
+            if (!ingested.add(batchId)) {
+                respond(_exchange, 200, "{\"duplicate\":true}");
+                return;
+            }
+            try {
+                ingest(site, entries);
+            } catch (Exception _e) {
+                // the agent retries the batch with the same id
+                ingested.remove(batchId);
+                LOGGER.warn("Exception while ingesting batch " + batchId + ": " + _e.getMessage(), _e);
+                respond(_exchange, 500, "{}");
+                return;
+            }
+            respond(_exchange, 200, "{}");
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Stores a site's entries, recombines the affected days across all sites and notifies the listeners
+     */
+    void ingest(String _site, List<BWEntry> _entries) {
+        if (_entries.isEmpty()) {
+            return;
+        }
+        List<BWSiteEntry> siteEntries = new ArrayList<>();
+        Date from = null;
+        Date to = null;
+        for (BWEntry entry : _entries) {
+            siteEntries.add(new BWSiteEntry(_site, entry.getDate(), entry.getUpload(), entry.getDownload()));
+            from = from == null || entry.getDate().before(from) ? entry.getDate() : from;
+            to = to == null || entry.getDate().after(to) ? entry.getDate() : to;
+        }
+
+        Date now = new Date();
+        List<BWEntry> entries = new ArrayList<>();
+        // recombining must see every site's latest entries, so only one ingest at a time gets here
+        synchronized (this) {
+            if (!siteRepository.saveAll(siteEntries)) {
+                throw new IllegalStateException("Unable to store entries for site " + _site);
+            }
+            SortedMap<Date, long[]> combined = new TreeMap<>();
+            for (BWSiteEntry siteEntry : siteRepository.findByDate(from, to)) {
+                long[] usage = combined.computeIfAbsent(new Date(siteEntry.getDate().getTime()), _date -> new long[2]);
+                usage[0] += BWUnits.parse(siteEntry.getUpload());
+                usage[1] += BWUnits.parse(siteEntry.getDownload());
+            }
+
+            for (Map.Entry<Date, long[]> day : combined.entrySet()) {
+                // stored in bytes, formatting would round the sum to one decimal
+                BWEntry entry = new BWEntry(day.getKey(), day.getValue()[0] + " B", day.getValue()[1] + " B");
+                entries.add(entry);
+                if (DateUtils.isSameDay(now, day.getKey()) && historicalRepository.save(new BWHistoricalEntry(now, entry.getUpload(), entry.getDownload())) == null) {
+                    throw new IllegalStateException("Unable to store combined snapshot for " + now);
+                }
+            }
+            // failing the batch releases its id, so the agent sends it again and the days are recombined
+            if (repository.saveAllDistinct(entries) < 0) {
+                throw new IllegalStateException(String.format("Unable to store %d combined entries", entries.size()));
+            }
+        }
+        LOGGER.debug(String.format("ingested %d entries from site '%s'", _entries.size(), _site));
+        notifyListeners(now, entries);
+    }
+
+    private void notifyListeners(Date _now, List<BWEntry> _entries) {
+        for (GatherListener listener : listeners) {
+            try {
+                listener.onGather(_now, _entries);
+            } catch (Exception _e) {
+                // listeners must not fail the ingest, the data has already been persisted
+                LOGGER.warn("Exception in gather listener " + listener.getClass().getSimpleName() + ": " + _e.getMessage(), _e);
+            }
+        }
+    }
+
+    private boolean authorized(HttpExchange _exchange) {
+        if (secret == null) {
+            return true;
+        }
+        String header = _exchange.getRequestHeaders().getFirst("X-Federation-Secret");
+        return header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void respond(HttpExchange _exchange, int _status, String _body) throws IOException {
+        byte[] bytes = _body.getBytes(StandardCharsets.UTF_8);
+        _exchange.getResponseHeaders().add("Content-Type", "application/json");
+        _exchange.sendResponseHeaders(_status, bytes.length);
+        try (OutputStream outputStream = _exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
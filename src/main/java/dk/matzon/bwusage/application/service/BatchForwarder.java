@@ -0,0 +1,219 @@
+package dk.matzon.bwusage.application.service;
+
+import com.google.gson.JsonObject;
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import okhttp3.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Agent side of federated collection, forwarding gathered samples to an aggregator.
+ * <p>
+ * Samples are coalesced per day, since a newer sample for a day supersedes the older ones, which also bounds the
+ * pending samples by federation.maxpending days (the oldest days are dropped beyond that). Pending days are sent as
+ * gzipped batches, one at a time to keep them in order. A batch keeps its id until the aggregator acknowledges it, so
+ * retries are idempotent. Failures back off exponentially, and a 429/503 from the aggregator is honored as
+ * backpressure using its Retry-After. Only a batch the aggregator can not parse (400/413) is discarded, anything else,
+ * such as a 401 for a wrong federation.secret or a 404 for a wrong federation.url, keeps it pending.
+ * <p>
+ * Sending blocks, so forwarding runs on a thread of its own rather than the shared scheduler.
+ */
+public class BatchForwarder implements GatherListener {
+
+    private final Logger LOGGER = LogManager.getLogger(BatchForwarder.class);
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final OkHttpClient okHttpClient;
+    private final String url;
+    private final String site;
+    private final String secret;
+    private final int batchSize;
+    private final int maxPending;
+    private final long period;
+    private final long maxBackoff;
+
+    private final SortedMap<Date, BWEntry> pending = new TreeMap<>();
+    private String inFlightId;
+    private volatile List<BWEntry> inFlight;
+    private long backoff;
+    private long blockedUntil;
+    private ScheduledFuture<?> scheduledFuture;
+
+    public BatchForwarder(Properties _properties) {
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(_runnable -> {
+            Thread thread = new Thread(_runnable, "batchforwarder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        url = _properties.getProperty("federation.url");
+        site = _properties.getProperty("federation.site");
+        secret = _properties.getProperty("federation.secret");
+        batchSize = Integer.parseInt(_properties.getProperty("federation.batchsize", "100"));
+        maxPending = Integer.parseInt(_properties.getProperty("federation.maxpending", "1000"));
+        period = TimeUnit.SECONDS.toMillis(Long.parseLong(_properties.getProperty("federation.period", "60")));
+        maxBackoff = TimeUnit.MINUTES.toMillis(Long.parseLong(_properties.getProperty("federation.maxbackoff", "30")));
+        okHttpClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .callTimeout(60, TimeUnit.SECONDS)
+                .build();
+        if (url == null || site == null) {
+            throw new IllegalArgumentException("federation.url and federation.site must be configured in agent mode");
+        }
+    }
+
+    public void init() {
+        LOGGER.info(String.format("initializing, forwarding to %s as site '%s'", url, site));
+        scheduledFuture = scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                forward();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        LOGGER.info(String.format("shutting down [pending: %d]", getPending()));
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(false);
+        }
+        scheduledExecutorService.shutdown();
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+    }
+
+    @Override
+    public void onGather(Date _now, List<BWEntry> _entries) {
+        // never blocks on a batch being sent
+        synchronized (pending) {
+            for (BWEntry entry : _entries) {
+                pending.put(entry.getDate(), entry);
+            }
+            while (pending.size() > maxPending) {
+                Date dropped = pending.firstKey();
+                pending.remove(dropped);
+                LOGGER.warn("pending samples exceeded federation.maxpending, dropped " + dropped);
+            }
+        }
+    }
+
+    public int getPending() {
+        List<BWEntry> batch = inFlight;
+        synchronized (pending) {
+            return pending.size() + (batch != null ? batch.size() : 0);
+        }
+    }
+
+    /**
+     * Sends pending batches until none are left, or the aggregator is unavailable
+     *
+     * @return true if everything pending was acknowledged
+     */
+    public synchronized boolean forward() {
+        if (System.currentTimeMillis() < blockedUntil) {
+            return false;
+        }
+        while (true) {
+            if (inFlight == null) {
+                List<BWEntry> batch = new ArrayList<>();
+                synchronized (pending) {
+                    Iterator<BWEntry> iterator = pending.values().iterator();
+                    while (iterator.hasNext() && batch.size() < batchSize) {
+                        batch.add(iterator.next());
+                        iterator.remove();
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return true;
+                }
+                inFlight = batch;
+                inFlightId = site + ":" + UUID.randomUUID();
+            }
+
+            long retryAfter = send(inFlightId, inFlight);
+            if (retryAfter > 0) {
+                blockedUntil = System.currentTimeMillis() + retryAfter;
+                LOGGER.debug(String.format("batch %s not delivered, retrying in %d ms", inFlightId, retryAfter));
+                return false;
+            }
+            inFlight = null;
+            inFlightId = null;
+            backoff = 0;
+        }
+    }
+
+    /**
+     * @return 0 if the batch was acknowledged, otherwise the time (ms) to wait before retrying
+     */
+    private long send(String _batchId, List<BWEntry> _entries) {
+        try {
+            Request.Builder builder = new Request.Builder()
+                    .url(url)
+                    .post(RequestBody.create(JSON, gzip(payload(_batchId, _entries))))
+                    .addHeader("Content-Encoding", "gzip")
+                    .addHeader("X-Batch-Id", _batchId);
+            if (secret != null) {
+                builder.addHeader("X-Federation-Secret", secret);
+            }
+            try (Response response = okHttpClient.newCall(builder.build()).execute()) {
+                if (response.isSuccessful()) {
+                    return 0;
+                }
+                if (response.code() == 429 || response.code() == 503) {
+                    String retryAfter = response.header("Retry-After");
+                    if (retryAfter != null) {
+                        return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+                    }
+                } else if (response.code() == 400 || response.code() == 413) {
+                    // the aggregator will never accept this batch, don't block the ones after it
+                    LOGGER.warn(String.format("batch %s rejected by aggregator [code: %d], discarding %d samples", _batchId, response.code(), _entries.size()));
+                    return 0;
+                }
+                LOGGER.warn(String.format("batch %s failed [code: %d]", _batchId, response.code()));
+            }
+        } catch (IOException | RuntimeException _e) {
+            LOGGER.warn(String.format("Exception while forwarding batch %s: %s", _batchId, _e.getMessage()));
+        }
+        backoff = backoff == 0 ? period : Math.min(backoff * 2, maxBackoff);
+        return backoff;
+    }
+
+    private String payload(String _batchId, List<BWEntry> _entries) {
+        // entries use the ISP response format, so the aggregator can parse them with ResponseParser
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        JsonObject entries = new JsonObject();
+        for (BWEntry entry : _entries) {
+            JsonObject usage = new JsonObject();
+            usage.addProperty("down", entry.getDownload());
+            usage.addProperty("up", entry.getUpload());
+            entries.add(sdf.format(entry.getDate()), usage);
+        }
+        JsonObject payload = new JsonObject();
+        payload.addProperty("site", site);
+        payload.addProperty("batchId", _batchId);
+        payload.add("entries", entries);
+        return payload.toString();
+    }
+
+    private static byte[] gzip(String _payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(_payload.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+}
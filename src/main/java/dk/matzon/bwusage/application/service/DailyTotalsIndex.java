@@ -0,0 +1,167 @@
+package dk.matzon.bwusage.application.service;
+
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWTotal;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Prefix-sum index over the daily totals, answering the total of any range of days with two lookups.
+ * <p>
+ * Built with one scan of the repository on first use, then kept up to date by the data gatherer. A changed day
+ * adjusts the prefix sums from that day on, which is O(1) for today and cheap for the recent days in the ISP window.
+ */
+public class DailyTotalsIndex implements GatherListener {
+
+    private final Logger LOGGER = LogManager.getLogger(DailyTotalsIndex.class);
+
+    private final Repository<BWEntry> repository;
+
+    private boolean built = false;
+    /**
+     * epoch day of index 0
+     */
+    private long firstDay;
+    private int days;
+    /**
+     * prefix[i] holds the total of the days before index i, so prefix has days + 1 elements in use
+     */
+    private long[] uploadPrefix = new long[1];
+    private long[] downloadPrefix = new long[1];
+
+    public DailyTotalsIndex(Repository<BWEntry> _repository) {
+        repository = _repository;
+    }
+
+    /**
+     * Discards the index, and rebuilds it from the repository
+     */
+    public synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        built = false;
+        clear();
+        final long[] count = {0};
+        boolean scanned = false;
+        try {
+            scanned = repository.scan(null, null, _entry -> {
+                update(_entry);
+                count[0]++;
+            });
+        } finally {
+            if (!scanned) {
+                // an unreadable or unparseable entry, discard the partial index and let the next sum try again
+                clear();
+                LOGGER.warn(String.format("scan failed after %d entries, index discarded", count[0]));
+            }
+        }
+        if (!scanned) {
+            return;
+        }
+        built = true;
+        LOGGER.info(String.format("built index of %d days from %d entries in %d ms", days, count[0], System.currentTimeMillis() - start));
+    }
+
+    @Override
+    public synchronized void onGather(Date _now, List<BWEntry> _entries) {
+        if (!built) {
+            // the first sum builds from the repository, which already has these entries
+            return;
+        }
+        for (BWEntry entry : _entries) {
+            update(entry);
+        }
+    }
+
+    /**
+     * @param _from first day (inclusive)
+     * @param _to   last day (inclusive)
+     * @return total for the days in the range
+     */
+    public synchronized BWTotal sum(Date _from, Date _to) {
+        if (!built) {
+            rebuild();
+        }
+        long from = Math.max(epochDay(_from), firstDay);
+        long to = Math.min(epochDay(_to), firstDay + days - 1);
+        if (days == 0 || from > to) {
+            return new BWTotal(0, 0);
+        }
+        int fromIndex = (int) (from - firstDay);
+        int toIndex = (int) (to - firstDay) + 1;
+        return new BWTotal(uploadPrefix[toIndex] - uploadPrefix[fromIndex], downloadPrefix[toIndex] - downloadPrefix[fromIndex]);
+    }
+
+    private void update(BWEntry _entry) {
+        long day = epochDay(_entry.getDate());
+        if (days == 0) {
+            firstDay = day;
+        } else if (day < firstDay) {
+            prepend((int) (firstDay - day));
+        }
+        int index = (int) (day - firstDay);
+        if (index >= days) {
+            append(index + 1 - days);
+        }
+
+        long uploadDelta = BWUnits.parse(_entry.getUpload()) - (uploadPrefix[index + 1] - uploadPrefix[index]);
+        long downloadDelta = BWUnits.parse(_entry.getDownload()) - (downloadPrefix[index + 1] - downloadPrefix[index]);
+        if (uploadDelta != 0 || downloadDelta != 0) {
+            for (int i = index + 1; i <= days; i++) {
+                uploadPrefix[i] += uploadDelta;
+                downloadPrefix[i] += downloadDelta;
+            }
+        }
+    }
+
+    /**
+     * Adds empty days after the last day
+     */
+    private void append(int _count) {
+        ensureCapacity(days + _count + 1);
+        for (int i = days + 1; i <= days + _count; i++) {
+            uploadPrefix[i] = uploadPrefix[days];
+            downloadPrefix[i] = downloadPrefix[days];
+        }
+        days += _count;
+    }
+
+    /**
+     * Adds empty days before the first day, only happens when older history is added
+     */
+    private void prepend(int _count) {
+        ensureCapacity(days + _count + 1);
+        System.arraycopy(uploadPrefix, 0, uploadPrefix, _count, days + 1);
+        System.arraycopy(downloadPrefix, 0, downloadPrefix, _count, days + 1);
+        Arrays.fill(uploadPrefix, 0, _count, 0);
+        Arrays.fill(downloadPrefix, 0, _count, 0);
+        firstDay -= _count;
+        days += _count;
+    }
+
+    private void clear() {
+        days = 0;
+        uploadPrefix = new long[1];
+        downloadPrefix = new long[1];
+    }
+
+    private void ensureCapacity(int _capacity) {
+        if (uploadPrefix.length < _capacity) {
+            int capacity = Math.max(_capacity, uploadPrefix.length * 2);
+            uploadPrefix = Arrays.copyOf(uploadPrefix, capacity);
+            downloadPrefix = Arrays.copyOf(downloadPrefix, capacity);
+        }
+    }
+
+    private static long epochDay(Date _date) {
+        return Instant.ofEpochMilli(_date.getTime()).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+}
@@ -4,6 +4,7 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import dk.matzon.bwusage.domain.DataGatherer;
+import dk.matzon.bwusage.domain.GatherListener;
 import dk.matzon.bwusage.domain.Repository;
 import dk.matzon.bwusage.domain.model.BWEntry;
 import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
@@ -12,25 +13,46 @@ import org.apache.commons.lang3.time.DateUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Brian Matzon <brian@matzon.dk>.
+ * <p>
+ * Gathers asynchronously: the ISP requests are enqueued with OkHttp, and the response is extracted and persisted from
+ * the completion callback, so the scheduler thread is only held to start a gather. Every gather has a hard deadline
+ * (datagatherer.deadline seconds), after which its requests are cancelled and it fails. The deadline is kept by a
+ * scheduler of its own, so it fires on time while the shared scheduler is busy with reports. With
+ * datagatherer.hedge.delay (ms) configured, a second data request is sent if the first hasn't completed by then, or
+ * has failed; the first response wins.
  */
 public class DataGathererImpl implements DataGatherer {
 
     private final Logger LOGGER = LogManager.getLogger(DataGathererImpl.class);
     private final ScheduledExecutorService scheduledExecutorService;
+    private final ScheduledExecutorService timeoutExecutorService;
     private final Repository<BWEntry> repository;
     private Repository<BWHistoricalEntry> historicalRepository;
     private final Properties properties;
 
-    private ScheduledFuture<?> scheduledFuture;
-    private int errorCount = 0;
+    private final GatherSchedule schedule;
+    private final OkHttpClient okHttpClient;
+    private final long deadline;
+    private final long hedgeDelay;
+    private final List<GatherListener> listeners = new CopyOnWriteArrayList<>();
+
+    private CompletableFuture<Void> inFlight;
+
+    private volatile ScheduledFuture<?> scheduledFuture;
+    private volatile boolean running = false;
+    private volatile long[] stageTimes = new long[3];
+    private BWEntry lastToday;
+    /**
+     * digest (upload/download) of the last persisted value of each day in the ISP's window, keyed by the day's time
+     */
+    private final Map<Long, String> accepted = new HashMap<>();
 
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
 
@@ -39,28 +61,48 @@ public class DataGathererImpl implements DataGatherer {
         repository = _repository;
         historicalRepository = _historicalRepository;
         properties = _properties;
+        schedule = GatherSchedule.fromProperties(_properties);
+        deadline = TimeUnit.SECONDS.toMillis(Long.parseLong(_properties.getProperty("datagatherer.deadline", "60")));
+        hedgeDelay = Long.parseLong(_properties.getProperty("datagatherer.hedge.delay", "0"));
+        okHttpClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                // per call, a gather makes several calls, so its deadline is enforced by timeoutExecutorService
+                .callTimeout(deadline, TimeUnit.MILLISECONDS)
+                .build();
+        ScheduledThreadPoolExecutor timeoutExecutor = new ScheduledThreadPoolExecutor(1, _runnable -> {
+            Thread thread = new Thread(_runnable, "datagatherer-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a timeout is cancelled by nearly every gather, don't keep them queued until their deadline
+        timeoutExecutor.setRemoveOnCancelPolicy(true);
+        timeoutExecutorService = timeoutExecutor;
     }
 
     @Override
     public void init() {
         LOGGER.info("initializing");
-        scheduledFuture = scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                downloadData();
-            }
-        }, Long.parseLong(properties.getProperty("datagatherer.datadelay")), Long.parseLong(properties.getProperty("datagatherer.dataperiod")), TimeUnit.MINUTES);
+        running = true;
+        scheduleNext(TimeUnit.MINUTES.toMillis(Long.parseLong(properties.getProperty("datagatherer.datadelay"))));
     }
 
     @Override
     public void shutdown() {
-        LOGGER.info(String.format("shutting down [errorCount: %d]", errorCount));
-        scheduledFuture.cancel(true);
+        LOGGER.info(String.format("shutting down [errorCount: %d, state: %s]", schedule.getErrorCount(), schedule.getState()));
+        running = false;
+        if (scheduledFuture != null) {
+            scheduledFuture.cancel(true);
+        }
+        okHttpClient.dispatcher().cancelAll();
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+        timeoutExecutorService.shutdownNow();
     }
 
     @Override
     public boolean isRunning() {
-        return !scheduledFuture.isCancelled();
+        return running;
     }
 
     @Override
@@ -71,30 +113,217 @@ public class DataGathererImpl implements DataGatherer {
         return -1;
     }
 
+    /**
+     * Gathers and waits for the gather to complete, then reschedules the pending gather from the updated schedule
+     */
+    @Override
+    public void downloadData() {
+        try {
+            gather().join();
+        } catch (CompletionException | CancellationException _e) {
+            // already handled by the gather
+        } catch (RuntimeException _e) {
+            LOGGER.warn("Unable to start gather: " + _e.getMessage(), _e);
+        } finally {
+            reschedule();
+        }
+    }
+
+    @Override
+    public void addListener(GatherListener _listener) {
+        listeners.add(_listener);
+    }
+
+    /**
+     * Clears the digests, so the next gather seeds them from the repository again
+     */
     @Override
-    public synchronized void downloadData() {
-        String body = null;
-        List<BWEntry> entries = null;
+    public synchronized void invalidate() {
+        accepted.clear();
+    }
+
+    /**
+     * @return time (ns) the last successful gather spent on download (login and data request), extract and persist
+     */
+    public long[] getStageTimes() {
+        return stageTimes.clone();
+    }
+
+    /**
+     * Scheduled gather, which reschedules itself according to the adaptive schedule
+     */
+    private void scheduledGather() {
+        schedule.onAttempt();
+        try {
+            gather().whenComplete((_result, _throwable) -> scheduleNext(schedule.getNextDelay()));
+        } catch (RuntimeException _e) {
+            // not started, a scheduled gather must still be followed by the next one
+            LOGGER.warn("Unable to start gather: " + _e.getMessage(), _e);
+            scheduleNext(schedule.getNextDelay());
+        }
+    }
+
+    /**
+     * Replaces the pending scheduled gather, e.g. a trial gather at circuit.opentime after a manual gather closed the
+     * circuit. A scheduled gather in flight reschedules itself once complete.
+     */
+    private synchronized void reschedule() {
+        if (scheduledFuture != null && !scheduledFuture.isDone() && scheduledFuture.cancel(false)) {
+            scheduleNext(schedule.getNextDelay());
+        }
+    }
+
+    private synchronized void scheduleNext(long _delay) {
+        if (!running || scheduledExecutorService.isShutdown()) {
+            return;
+        }
+        scheduledFuture = scheduledExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduledGather();
+            }
+        }, _delay, TimeUnit.MILLISECONDS);
+        LOGGER.debug(String.format("next gather in %d ms [state: %s]", _delay, schedule.getState()));
+    }
+
+    /**
+     * Starts a gather, or joins the one in flight
+     *
+     * @return CompletableFuture completing once the gather has been persisted, or has failed
+     */
+    private synchronized CompletableFuture<Void> gather() {
+        if (inFlight != null && !inFlight.isDone()) {
+            return inFlight;
+        }
+        final Date now = new Date();
+        final long started = System.nanoTime();
+        final List<Call> calls = new CopyOnWriteArrayList<>();
+        CompletableFuture<String> pending;
+        try {
+            pending = download(calls);
+        } catch (RuntimeException _e) {
+            // e.g. an invalid url, failing the gather like any other error
+            pending = new CompletableFuture<>();
+            pending.completeExceptionally(_e);
+        }
+        final CompletableFuture<String> download = pending;
+        final ScheduledFuture<?> timeout = timeoutExecutorService.schedule(new Runnable() {
+            @Override
+            public void run() {
+                download.completeExceptionally(new TimeoutException("gather exceeded deadline of " + deadline + " ms"));
+            }
+        }, deadline, TimeUnit.MILLISECONDS);
+
+        inFlight = download
+                .whenComplete((_body, _throwable) -> {
+                    timeout.cancel(false);
+                    // the losing hedged request, or everything after a timeout
+                    for (Call call : calls) {
+                        call.cancel();
+                    }
+                })
+                .thenAccept(_body -> complete(now, started, _body))
+                .whenComplete((_result, _throwable) -> {
+                    if (_throwable != null) {
+                        fail(_throwable instanceof CompletionException && _throwable.getCause() != null ? _throwable.getCause() : _throwable);
+                    }
+                });
+        return inFlight;
+    }
+
+    /**
+     * Extracts and persists a downloaded page, on the thread completing the download
+     */
+    private synchronized void complete(Date _now, long _started, String _body) {
+        // anything in this flow, which is out of order, should result in error count increase due to exceptions being thrown
+        List<BWEntry> entries;
+        long[] times = new long[3];
         try {
-            // anything in this flow, which is out of order, should result in error count increase due to exceptions being thrown
-            Date now = new Date();
-            body = download();
-            entries = extract(body);
-            persist(now, entries);
-            errorCount = 0;
+            long downloaded = System.nanoTime();
+            times[0] = downloaded - _started;
+            entries = extract(_body);
+            long extracted = System.nanoTime();
+            times[1] = extracted - downloaded;
+            persist(_now, entries);
+            times[2] = System.nanoTime() - extracted;
+        } catch (RuntimeException _e) {
+            LOGGER.debug(_body);
+            throw _e;
         } catch (Exception _e) {
-            LOGGER.warn("Exception occurred while executing main block of datagatherer: " + _e.getMessage(), _e);
-            if (body != null) {
-                LOGGER.debug(body);
+            LOGGER.debug(_body);
+            throw new CompletionException(_e);
+        }
+        stageTimes = times;
+        notifyListeners(_now, entries);
+        schedule.onSuccess(isMoving(_now, entries), DateUtils.toCalendar(_now));
+    }
+
+    private void fail(Throwable _throwable) {
+        LOGGER.warn("Exception occurred while executing main block of datagatherer: " + _throwable.getMessage(), _throwable);
+        schedule.onFailure();
+        if (schedule.getState() == GatherSchedule.STATE.OPEN) {
+            LOGGER.warn(String.format("circuit open after %d consecutive errors, next attempt in %d ms", schedule.getErrorCount(), schedule.getNextDelay()));
+        }
+    }
+
+    private void notifyListeners(Date _now, List<BWEntry> _entries) {
+        for (GatherListener listener : listeners) {
+            try {
+                listener.onGather(_now, _entries);
+            } catch (Exception _e) {
+                // listeners must not fail the gather, the data has already been persisted
+                LOGGER.warn("Exception in gather listener " + listener.getClass().getSimpleName() + ": " + _e.getMessage(), _e);
             }
-            if (++errorCount == Integer.valueOf(properties.getProperty("datagatherer.maxerrorcount"))) {
-                shutdown();
+        }
+    }
+
+    /**
+     * @return true if today's counters changed since the previous gather
+     */
+    private boolean isMoving(Date _now, List<BWEntry> _entries) {
+        for (BWEntry entry : _entries) {
+            if (DateUtils.isSameDay(_now, entry.getDate())) {
+                boolean moving = !entry.equals(lastToday);
+                lastToday = entry;
+                return moving;
             }
         }
+        return false;
     }
 
+    /**
+     * Persists the days which are new or changed since the last gather, usually just today. The digests are seeded
+     * from the repository on the first gather, so a restart doesn't rewrite the whole window either.
+     */
     private void persist(Date _now, List<BWEntry> _entries) {
-        repository.saveAll(_entries);
+        if (accepted.isEmpty() && !_entries.isEmpty()) {
+            Date from = _entries.get(0).getDate();
+            Date to = from;
+            for (BWEntry entry : _entries) {
+                from = entry.getDate().before(from) ? entry.getDate() : from;
+                to = entry.getDate().after(to) ? entry.getDate() : to;
+            }
+            for (BWEntry stored : repository.findByDate(from, to)) {
+                accepted.put(stored.getDate().getTime(), digest(stored));
+            }
+        }
+
+        Map<Long, String> digests = new HashMap<>();
+        List<BWEntry> changed = new ArrayList<>();
+        for (BWEntry entry : _entries) {
+            String digest = digest(entry);
+            digests.put(entry.getDate().getTime(), digest);
+            if (!digest.equals(accepted.get(entry.getDate().getTime()))) {
+                changed.add(entry);
+            }
+        }
+        if (!changed.isEmpty() && !repository.saveAll(changed)) {
+            throw new IllegalStateException("Unable to persist " + changed.size() + " entries");
+        }
+        // days which left the window are dropped, keeping the digests bounded by the window
+        accepted.clear();
+        accepted.putAll(digests);
+        LOGGER.debug(String.format("persisted %d of %d days", changed.size(), _entries.size()));
 
         // add historical too
         for (BWEntry entry : _entries) {
@@ -104,56 +333,46 @@ public class DataGathererImpl implements DataGatherer {
         }
     }
 
-    private List<BWEntry> extract(String _page) throws Exception {
-        List<BWEntry> entries = new ArrayList<>();
-
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    private static String digest(BWEntry _entry) {
+        return _entry.getUpload() + "/" + _entry.getDownload();
+    }
 
-        JsonElement jsonElement = new JsonParser().parse(_page);
-        JsonObject jsonObject = jsonElement.getAsJsonObject();
-        Set<Map.Entry<String, JsonElement>> sourceEntries = jsonObject.entrySet();
-        for (Map.Entry<String, JsonElement> sourceEntry : sourceEntries) {
-            JsonElement download = sourceEntry.getValue().getAsJsonObject().get("down");
-            JsonElement upload = sourceEntry.getValue().getAsJsonObject().get("up");
-            Date parsedDate = sdf.parse(sourceEntry.getKey());
-            BWEntry reportEntry = new BWEntry(parsedDate, upload.getAsString(), download.getAsString());
-            entries.add(reportEntry);
-        }
-        return entries;
+    private List<BWEntry> extract(String _page) throws Exception {
+        return ResponseParser.parse(_page);
     }
 
-    private String download() {
+    /**
+     * Logs in and downloads the bandwidth page, without blocking
+     *
+     * @param _calls List receiving every Call made, so they can be cancelled
+     */
+    private CompletableFuture<String> download(final List<Call> _calls) {
         String loginUrl = properties.getProperty("datagatherer.login");
-        String username = properties.getProperty("datagatherer.username");
+        final String username = properties.getProperty("datagatherer.username");
         String password = properties.getProperty("datagatherer.password");
 
-        String bandwidthUrl = properties.getProperty("datagatherer.bwpage");
-        String bandwidthMac = properties.getProperty("datagatherer.mac");
-        String bandwidthBuid = properties.getProperty("datagatherer.buid");
-        String bandwidthCase = properties.getProperty("datagatherer.case");
+        final String bandwidthUrl = properties.getProperty("datagatherer.bwpage");
+        final String bandwidthMac = properties.getProperty("datagatherer.mac");
+        final String bandwidthBuid = properties.getProperty("datagatherer.buid");
+        final String bandwidthCase = properties.getProperty("datagatherer.case");
 
-        try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-
-            // login
-            JsonObject loginJsonObject = new JsonObject();
-            loginJsonObject.addProperty("username", username);
-            loginJsonObject.addProperty("password", password);
-            loginJsonObject.addProperty("bu_id", bandwidthBuid);
-            String loginPayload = loginJsonObject.toString();
-
-            RequestBody loginRequestBody = RequestBody.create(JSON, loginPayload);
-            Request loginRequest = new Request.Builder()
-                    .url(loginUrl)
-                    .post(loginRequestBody)
-                    .addHeader("Accept", "application/json")
-                    .addHeader("Content-Type", "text/plain")
-                    .build();
-            Response loginResponse = okHttpClient.newCall(loginRequest).execute();
+        // login
+        JsonObject loginJsonObject = new JsonObject();
+        loginJsonObject.addProperty("username", username);
+        loginJsonObject.addProperty("password", password);
+        loginJsonObject.addProperty("bu_id", bandwidthBuid);
+        String loginPayload = loginJsonObject.toString();
 
-            String loginResponseBody = loginResponse.body().string();
-            JsonElement loginResponseJson = new JsonParser().parse(loginResponseBody);
+        RequestBody loginRequestBody = RequestBody.create(JSON, loginPayload);
+        Request loginRequest = new Request.Builder()
+                .url(loginUrl)
+                .post(loginRequestBody)
+                .addHeader("Accept", "application/json")
+                .addHeader("Content-Type", "text/plain")
+                .build();
 
+        return call(loginRequest, _calls).thenCompose(_loginResponseBody -> {
+            JsonElement loginResponseJson = new JsonParser().parse(_loginResponseBody);
             String jwt = loginResponseJson.getAsJsonObject().get("token").getAsString();
 
             // make API request for BW data
@@ -172,15 +391,73 @@ public class DataGathererImpl implements DataGatherer {
                     .addHeader("Content-Type", "text/plain")
                     .addHeader("authorization", "Bearer " + jwt)
                     .build();
+            return hedgeDelay > 0 ? hedged(bwRequest, _calls) : call(bwRequest, _calls);
+        });
+    }
 
-            Response bwResponse = okHttpClient.newCall(bwRequest).execute();
-            if (bwResponse.isSuccessful() && bwResponse.body() != null) {
-                return bwResponse.body().string();
+    /**
+     * Sends the request, and a second one if the first is slower than datagatherer.hedge.delay or fails
+     *
+     * @return CompletableFuture completing with the first successful response, or failing once both failed
+     */
+    private CompletableFuture<String> hedged(final Request _request, final List<Call> _calls) {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final Runnable attempt = new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone() || attempts.incrementAndGet() > 2) {
+                    return;
+                }
+                if (attempts.get() == 2) {
+                    LOGGER.debug("sending hedged request");
+                }
+                call(_request, _calls).whenComplete((_body, _throwable) -> {
+                    if (_throwable == null) {
+                        result.complete(_body);
+                    } else if (failures.incrementAndGet() == 2) {
+                        result.completeExceptionally(_throwable);
+                    } else {
+                        run();
+                    }
+                });
             }
-        } catch (Exception e) {
-            LOGGER.error("Exception while downloading BW data: " + e.getMessage(), e);
-        }
-        return null;
+        };
+        attempt.run();
+        timeoutExecutorService.schedule(attempt, hedgeDelay, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Enqueues the request
+     *
+     * @return CompletableFuture completing with the response body, failing on errors and unsuccessful responses
+     */
+    private CompletableFuture<String> call(Request _request, List<Call> _calls) {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        Call call = okHttpClient.newCall(_request);
+        _calls.add(call);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call _call, IOException _e) {
+                result.completeExceptionally(_e);
+            }
+
+            @Override
+            public void onResponse(Call _call, Response _response) {
+                try (ResponseBody body = _response.body()) {
+                    if (_response.isSuccessful() && body != null) {
+                        result.complete(body.string());
+                    } else {
+                        result.completeExceptionally(new IOException(String.format("%s failed [code: %d]", _call.request().url(), _response.code())));
+                    }
+                } catch (IOException | RuntimeException _e) {
+                    result.completeExceptionally(_e);
+                }
+            }
+        });
+        return result;
     }
 
 }
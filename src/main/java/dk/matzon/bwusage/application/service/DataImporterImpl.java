@@ -0,0 +1,326 @@
+package dk.matzon.bwusage.application.service;
+
+import dk.matzon.bwusage.domain.DataImporter;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWImportResult;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk importer for historical bandwidth usage.
+ * <p>
+ * Supported formats are ISP JSON dumps (*.json, as returned by the bandwidth endpoint) and CSV (*.csv) with lines of
+ * <code>date,upload,download</code>. CSV dates in <code>yyyy-MM-dd</code> are imported as daily entries, dates with a
+ * time of day (<code>yyyy-MM-dd HH:mm[:ss]</code>) as historical entries. Blank lines and lines starting with '#' are
+ * skipped. Lines or entries with an invalid date or usage (such as a header) are rejected, as are files which can't be
+ * parsed at all; both are counted in the result, and an import where nothing could be read fails.
+ * <p>
+ * Files and lines are parsed in parallel, duplicates are resolved in file and line order (last one wins) and rows are
+ * written in batches, skipping rows already stored unchanged. With app.memory=bounded, files are instead streamed
+ * sequentially a batch at a time, which resolves duplicates the same way since later batches overwrite earlier ones.
+ */
+public class DataImporterImpl implements DataImporter {
+    private final Logger LOGGER = LogManager.getLogger(DataImporterImpl.class);
+
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd[ ]['T']HH:mm[:ss]");
+
+    private final Repository<BWEntry> repository;
+    private final Repository<BWHistoricalEntry> historicalRepository;
+    private final int batchSize;
+    private final boolean bounded;
+
+    public DataImporterImpl(Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository, Properties _properties) {
+        repository = _repository;
+        historicalRepository = _historicalRepository;
+        batchSize = Integer.parseInt(_properties.getProperty("importer.batchsize", "5000"));
+        bounded = "bounded".equals(_properties.getProperty("app.memory"));
+    }
+
+    @Override
+    public BWImportResult importData(File _source) throws IOException {
+        long start = System.currentTimeMillis();
+        List<File> files = collect(_source);
+        if (files.isEmpty()) {
+            throw new IOException("No .csv or .json files found at " + _source);
+        }
+        Rejections rejections = new Rejections();
+        if (bounded) {
+            return importStreaming(_source, files, rejections, start);
+        }
+
+        // parse all files in parallel, keyed by file/line order so duplicates resolve deterministically
+        final List<Row> rows;
+        try {
+            rows = IntStream.range(0, files.size())
+                    .parallel()
+                    .mapToObj(_index -> parse(files.get(_index), _index, rejections))
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException _e) {
+            throw _e.getCause();
+        }
+        if (rows.isEmpty()) {
+            throw new IOException(String.format("Nothing to import from %s, %s", _source, rejections));
+        }
+
+        SortedMap<Date, BWEntry> entries = new TreeMap<>();
+        SortedMap<Date, BWHistoricalEntry> historicalEntries = new TreeMap<>();
+        rows.sort(Comparator.comparingLong(_row -> _row.order));
+        for (Row row : rows) {
+            if (row.entry instanceof BWEntry) {
+                entries.put(((BWEntry) row.entry).getDate(), (BWEntry) row.entry);
+            } else {
+                historicalEntries.put(((BWHistoricalEntry) row.entry).getDate(), (BWHistoricalEntry) row.entry);
+            }
+        }
+        long parsed = System.currentTimeMillis() - start;
+        progress(String.format("parsed %d files, %d rows (%d distinct) in %d ms, %s", files.size(), rows.size(), entries.size() + historicalEntries.size(), parsed, rejections));
+
+        long total = entries.size() + historicalEntries.size();
+        AtomicLong processed = new AtomicLong();
+        long saved = write(new ArrayList<>(entries.values()), repository, processed, total, start);
+        saved += write(new ArrayList<>(historicalEntries.values()), historicalRepository, processed, total, start);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        progress(String.format("imported %d rows, %d inserted or updated, in %d ms (%d rows/sec), %s", total, saved, elapsed, total * 1000 / elapsed, rejections));
+        return rejections.result(files.size(), rows.size(), saved);
+    }
+
+    /**
+     * Imports the files in order, holding at most a batch of rows per type in memory
+     */
+    private BWImportResult importStreaming(File _source, List<File> _files, Rejections _rejections, long _start) throws IOException {
+        List<BWEntry> entries = new ArrayList<>();
+        List<BWHistoricalEntry> historicalEntries = new ArrayList<>();
+        long[] counts = new long[2];
+        for (File file : _files) {
+            if (file.getName().toLowerCase().endsWith(".json")) {
+                // ISP dumps are a single response window
+                for (Row row : parse(file, 0, _rejections)) {
+                    add(row, entries, historicalEntries, counts, _start);
+                }
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Row row = parseLine(line, 0, _rejections);
+                    if (row != null) {
+                        add(row, entries, historicalEntries, counts, _start);
+                    }
+                }
+            }
+        }
+        if (counts[0] == 0) {
+            throw new IOException(String.format("Nothing to import from %s, %s", _source, _rejections));
+        }
+        counts[1] += save(repository, entries) + save(historicalRepository, historicalEntries);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - _start);
+        progress(String.format("imported %d rows from %d files, %d inserted or updated, in %d ms (%d rows/sec), %s", counts[0], _files.size(), counts[1], elapsed, counts[0] * 1000 / elapsed, _rejections));
+        return _rejections.result(_files.size(), counts[0], counts[1]);
+    }
+
+    private void add(Row _row, List<BWEntry> _entries, List<BWHistoricalEntry> _historicalEntries, long[] _counts, long _start) throws IOException {
+        if (_row.entry instanceof BWEntry) {
+            _entries.add((BWEntry) _row.entry);
+        } else {
+            _historicalEntries.add((BWHistoricalEntry) _row.entry);
+        }
+        _counts[0]++;
+        if (_entries.size() >= batchSize) {
+            _counts[1] += save(repository, _entries);
+            _entries.clear();
+        } else if (_historicalEntries.size() >= batchSize) {
+            _counts[1] += save(historicalRepository, _historicalEntries);
+            _historicalEntries.clear();
+        } else {
+            return;
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - _start);
+        progress(String.format("%d rows (%d rows/sec)", _counts[0], _counts[0] * 1000 / elapsed));
+    }
+
+    private <T> long write(List<T> _entities, Repository<T> _repository, AtomicLong _processed, long _total, long _start) throws IOException {
+        long saved = 0;
+        for (int i = 0; i < _entities.size(); i += batchSize) {
+            List<T> batch = _entities.subList(i, Math.min(i + batchSize, _entities.size()));
+            saved += save(_repository, batch);
+            long processed = _processed.addAndGet(batch.size());
+            long elapsed = Math.max(1, System.currentTimeMillis() - _start);
+            progress(String.format("%d/%d rows (%d rows/sec)", processed, _total, processed * 1000 / elapsed));
+        }
+        return saved;
+    }
+
+    /**
+     * @return number of rows inserted or updated
+     * @throws IOException if the batch was rolled back, batches before it stay imported
+     */
+    private <T> int save(Repository<T> _repository, List<T> _entities) throws IOException {
+        int saved = _repository.saveAllDistinct(_entities);
+        if (saved < 0) {
+            throw new IOException(String.format("Unable to store a batch of %d rows, nothing of it was written", _entities.size()));
+        }
+        return saved;
+    }
+
+    private List<File> collect(File _source) {
+        List<File> files = new ArrayList<>();
+        if (_source.isDirectory()) {
+            File[] children = _source.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    files.addAll(collect(child));
+                }
+            }
+        } else if (isSupported(_source)) {
+            files.add(_source);
+        }
+        return files;
+    }
+
+    private boolean isSupported(File _file) {
+        String name = _file.getName().toLowerCase();
+        return _file.isFile() && (name.endsWith(".csv") || name.endsWith(".json"));
+    }
+
+    private List<Row> parse(File _file, int _fileIndex, final Rejections _rejections) {
+        long order = (long) _fileIndex << 32;
+        try {
+            if (_file.getName().toLowerCase().endsWith(".json")) {
+                String page = new String(Files.readAllBytes(_file.toPath()), StandardCharsets.UTF_8);
+                List<BWEntry> entries = ResponseParser.parse(page);
+                List<Row> rows = new ArrayList<>(entries.size());
+                for (int i = 0; i < entries.size(); i++) {
+                    BWEntry entry = entries.get(i);
+                    if (isValid(entry.getUpload(), entry.getDownload())) {
+                        rows.add(new Row(order + i, entry));
+                    } else {
+                        reject(_rejections, _file + ": " + entry);
+                    }
+                }
+                return rows;
+            }
+
+            final List<String> lines = Files.readAllLines(_file.toPath(), StandardCharsets.UTF_8);
+            return IntStream.range(0, lines.size())
+                    .parallel()
+                    .mapToObj(_index -> parseLine(lines.get(_index), order + _index, _rejections))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+        } catch (ParseException _e) {
+            LOGGER.warn(String.format("Skipping %s, unable to parse: %s", _file, _e.getMessage()));
+            _rejections.files.incrementAndGet();
+            return Collections.emptyList();
+        } catch (IOException _e) {
+            throw new UncheckedIOException(_e);
+        }
+    }
+
+    /**
+     * @return Row for the line, or null if it is blank, a comment or rejected
+     */
+    private Row parseLine(String _line, long _order, Rejections _rejections) {
+        String line = _line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] tokens = line.split("[,;]");
+        if (tokens.length < 3) {
+            reject(_rejections, _line);
+            return null;
+        }
+        String date = tokens[0].trim();
+        String upload = tokens[1].trim();
+        String download = tokens[2].trim();
+        if (!isValid(upload, download)) {
+            reject(_rejections, _line);
+            return null;
+        }
+        try {
+            if (date.length() == 10) {
+                Date day = Date.from(LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant());
+                return new Row(_order, new BWEntry(day, upload, download));
+            }
+            Date timestamp = Date.from(LocalDateTime.parse(date, DATE_TIME_FORMAT).atZone(ZoneId.systemDefault()).toInstant());
+            return new Row(_order, new BWHistoricalEntry(timestamp, upload, download));
+        } catch (DateTimeParseException _e) {
+            reject(_rejections, _line);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if both usages are sizes the reports and totals can parse
+     */
+    private static boolean isValid(String _upload, String _download) {
+        try {
+            BWUnits.parse(_upload);
+            BWUnits.parse(_download);
+            return true;
+        } catch (IllegalArgumentException _e) {
+            return false;
+        }
+    }
+
+    private void reject(Rejections _rejections, String _row) {
+        _rejections.rows.incrementAndGet();
+        LOGGER.debug("Rejecting row: " + _row);
+    }
+
+    private void progress(String _message) {
+        LOGGER.info(_message);
+        System.out.println(_message);
+    }
+
+    /**
+     * Files and rows left out of an import, counted from the parallel parse
+     */
+    private static class Rejections {
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicLong rows = new AtomicLong();
+
+        private BWImportResult result(int _files, long _rows, long _saved) {
+            return new BWImportResult(_files, _rows, _saved, files.get(), rows.get());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("skipped %d files, rejected %d rows", files.get(), rows.get());
+        }
+    }
+
+    private static class Row {
+        private final long order;
+        private final Serializable entry;
+
+        private Row(long _order, Serializable _entry) {
+            order = _order;
+            entry = _entry;
+        }
+    }
+}
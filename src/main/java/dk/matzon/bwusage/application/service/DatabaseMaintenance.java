@@ -0,0 +1,163 @@
+package dk.matzon.bwusage.application.service;
+
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Managed HSQLDB maintenance, next to the regular backup.
+ * <p>
+ * HSQLDB appends every change to the .log, which is replayed on startup until a checkpoint writes the .script, and
+ * deleted or moved rows leave lost space in the .data file until a defrag. Maintenance runs in the idle window just
+ * after a gather (maintenance.delay seconds later), so it never competes with one. A checkpoint is performed when the
+ * .log exceeds maintenance.log.maxsize, a defrag when the lost space exceeds maintenance.defrag.ratio of a .data file
+ * larger than maintenance.defrag.minsize.
+ * <p>
+ * The time spent is recorded, as is the startup replay time saved, estimated from how long the database took to open
+ * for the size of its .script and .log.
+ */
+public class DatabaseMaintenance implements GatherListener {
+
+    private static final long MIN_ESTIMATE_BYTES = 1024 * 1024;
+
+    private final Logger LOGGER = LogManager.getLogger(DatabaseMaintenance.class);
+
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final long delay;
+    private final long logMaxSize;
+    private final long defragMinSize;
+    private final double defragRatio;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private int checkpoints;
+    private int defrags;
+    private long lastDuration;
+    private long totalDuration;
+    private long truncatedBytes;
+    private long reclaimedBytes;
+
+    public DatabaseMaintenance(ScheduledExecutorService _scheduledExecutorService, Properties _properties) {
+        scheduledExecutorService = _scheduledExecutorService;
+        delay = TimeUnit.SECONDS.toMillis(Long.parseLong(_properties.getProperty("maintenance.delay", "10")));
+        logMaxSize = BWUnits.parse(_properties.getProperty("maintenance.log.maxsize", "10 MB"));
+        defragMinSize = BWUnits.parse(_properties.getProperty("maintenance.defrag.minsize", "10 MB"));
+        defragRatio = Double.parseDouble(_properties.getProperty("maintenance.defrag.ratio", "0.3"));
+    }
+
+    @Override
+    public void onGather(Date _now, List<BWEntry> _entries) {
+        // the gather has just finished, leaving the database idle until the next one
+        if (pending.compareAndSet(false, true)) {
+            scheduledExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.set(false);
+                    maintain(false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Checks the database files, performing a checkpoint or defrag if they are due (or regardless, if forced)
+     */
+    public synchronized void maintain(boolean _force) {
+        String path = databasePath();
+        if (path == null) {
+            return;
+        }
+        long logSize = new File(path + ".log").length();
+        long dataSize = new File(path + ".data").length();
+        long lostBytes = dataSize > defragMinSize || _force ? lostBytes() : 0;
+        boolean defrag = dataSize > defragMinSize && lostBytes > dataSize * defragRatio;
+        if (!_force && !defrag && logSize <= logMaxSize) {
+            LOGGER.debug(String.format("no maintenance due [log: %s, data: %s]", BWUnits.format(logSize), BWUnits.format(dataSize)));
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        if (!checkpoint(defrag)) {
+            return;
+        }
+        long duration = System.currentTimeMillis() - start;
+        long truncated = Math.max(0, logSize - new File(path + ".log").length());
+        long reclaimed = defrag ? Math.max(0, dataSize - new File(path + ".data").length()) : 0;
+
+        if (defrag) {
+            defrags++;
+        } else {
+            checkpoints++;
+        }
+        lastDuration = duration;
+        totalDuration += duration;
+        truncatedBytes += truncated;
+        reclaimedBytes += reclaimed;
+        LOGGER.info(String.format("%s in %d ms, truncated log by %s, reclaimed %s, saving an estimated %d ms of startup replay",
+                defrag ? "checkpoint defrag" : "checkpoint", duration, BWUnits.format(truncated), BWUnits.format(reclaimed), savedReplayTime(truncated)));
+    }
+
+    public synchronized void printStatus() {
+        String path = databasePath();
+        if (path == null) {
+            System.out.println("maintenance only applies to file databases");
+            return;
+        }
+        System.out.println(String.format("log: %s, data: %s, startup: %d ms for %s",
+                BWUnits.format(new File(path + ".log").length()), BWUnits.format(new File(path + ".data").length()),
+                HibernateUtil.getStartupReplayTime(), BWUnits.format(HibernateUtil.getStartupReplayBytes())));
+        System.out.println(String.format("checkpoints: %d, defrags: %d, last: %d ms, total: %d ms, log truncated: %s, reclaimed: %s, replay saved: ~%d ms",
+                checkpoints, defrags, lastDuration, totalDuration, BWUnits.format(truncatedBytes), BWUnits.format(reclaimedBytes), savedReplayTime(truncatedBytes)));
+    }
+
+    /**
+     * @return path of the file database, without extension, or null if there is nothing to maintain
+     */
+    protected String databasePath() {
+        return HibernateUtil.getDatabasePath();
+    }
+
+    protected long lostBytes() {
+        return HibernateUtil.getLostBytes();
+    }
+
+    protected boolean checkpoint(boolean _defrag) {
+        return HibernateUtil.checkpoint(_defrag);
+    }
+
+    public synchronized int getCheckpoints() {
+        return checkpoints;
+    }
+
+    public synchronized int getDefrags() {
+        return defrags;
+    }
+
+    public synchronized long getTotalDuration() {
+        return totalDuration;
+    }
+
+    public synchronized long getSavedReplayTime() {
+        return savedReplayTime(truncatedBytes);
+    }
+
+    /**
+     * Estimates the startup replay time saved by truncating the log, from the startup time per byte of script and log.
+     * Opening a small database is dominated by fixed costs, so it gives no estimate.
+     */
+    private static long savedReplayTime(long _truncatedBytes) {
+        long startupBytes = HibernateUtil.getStartupReplayBytes();
+        return startupBytes >= MIN_ESTIMATE_BYTES ? HibernateUtil.getStartupReplayTime() * _truncatedBytes / startupBytes : 0;
+    }
+}
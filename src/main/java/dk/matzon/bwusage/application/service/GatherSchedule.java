@@ -0,0 +1,128 @@
+package dk.matzon.bwusage.application.service;
+
+import java.util.Calendar;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive schedule for the data gatherer.
+ * <p>
+ * Polls at the minimum period while counters are moving, backs off towards the maximum period while they are idle
+ * (and always during the night window), and applies exponential backoff on errors. After too many consecutive errors
+ * the circuit opens, and a single trial gather is attempted once the open time has elapsed.
+ */
+public class GatherSchedule {
+
+    public enum STATE {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final long minPeriod;
+    private final long basePeriod;
+    private final long maxPeriod;
+    private final int nightStart;
+    private final int nightEnd;
+    private final int maxErrorCount;
+    private final long openTime;
+
+    private STATE state = STATE.CLOSED;
+    private long period;
+    private long nextDelay;
+    private int errorCount = 0;
+
+    /**
+     * @param _minPeriod     period (ms) used while counters are moving
+     * @param _basePeriod    period (ms) used after the first idle gather
+     * @param _maxPeriod     upper bound (ms) for idle and night periods
+     * @param _nightStart    hour of day (inclusive) at which the night window starts
+     * @param _nightEnd      hour of day (exclusive) at which the night window ends
+     * @param _maxErrorCount number of consecutive errors before the circuit opens
+     * @param _openTime      time (ms) the circuit stays open before a trial gather
+     */
+    public GatherSchedule(long _minPeriod, long _basePeriod, long _maxPeriod, int _nightStart, int _nightEnd, int _maxErrorCount, long _openTime) {
+        minPeriod = Math.min(_minPeriod, _basePeriod);
+        basePeriod = _basePeriod;
+        maxPeriod = Math.max(_maxPeriod, _basePeriod);
+        nightStart = _nightStart;
+        nightEnd = _nightEnd;
+        maxErrorCount = Math.max(1, _maxErrorCount);
+        openTime = _openTime;
+        period = basePeriod;
+        nextDelay = basePeriod;
+    }
+
+    /**
+     * Builds a schedule from the datagatherer.* properties, all periods configured in minutes
+     */
+    public static GatherSchedule fromProperties(Properties _properties) {
+        long base = Long.parseLong(_properties.getProperty("datagatherer.dataperiod"));
+        long min = Long.parseLong(_properties.getProperty("datagatherer.dataperiod.min", String.valueOf(Math.max(1, base / 2))));
+        long max = Long.parseLong(_properties.getProperty("datagatherer.dataperiod.max", String.valueOf(base * 4)));
+        int nightStart = Integer.parseInt(_properties.getProperty("datagatherer.night.start", "1"));
+        int nightEnd = Integer.parseInt(_properties.getProperty("datagatherer.night.end", "6"));
+        int maxErrorCount = Integer.parseInt(_properties.getProperty("datagatherer.maxerrorcount"));
+        long openTime = Long.parseLong(_properties.getProperty("datagatherer.circuit.opentime", "60"));
+        return new GatherSchedule(TimeUnit.MINUTES.toMillis(min), TimeUnit.MINUTES.toMillis(base), TimeUnit.MINUTES.toMillis(max),
+                nightStart, nightEnd, maxErrorCount, TimeUnit.MINUTES.toMillis(openTime));
+    }
+
+    /**
+     * Invoked before each scheduled gather, moving an open circuit to half open
+     */
+    public synchronized void onAttempt() {
+        if (state == STATE.OPEN) {
+            state = STATE.HALF_OPEN;
+        }
+    }
+
+    /**
+     * @param _moving true if the counters changed since the previous successful gather
+     * @param _now    time of the gather
+     */
+    public synchronized void onSuccess(boolean _moving, Calendar _now) {
+        errorCount = 0;
+        state = STATE.CLOSED;
+        if (_moving) {
+            period = minPeriod;
+        } else if (period < basePeriod) {
+            period = basePeriod;
+        } else {
+            period = Math.min(period * 2, maxPeriod);
+        }
+        nextDelay = isNight(_now) && !_moving ? maxPeriod : period;
+    }
+
+    public synchronized void onFailure() {
+        errorCount++;
+        if (state == STATE.HALF_OPEN || errorCount >= maxErrorCount) {
+            state = STATE.OPEN;
+            nextDelay = openTime;
+        } else {
+            // exponential backoff, starting at the min period
+            long backoff = minPeriod << Math.min(errorCount - 1, 30);
+            nextDelay = Math.min(backoff, openTime);
+        }
+    }
+
+    public synchronized long getNextDelay() {
+        return nextDelay;
+    }
+
+    public synchronized STATE getState() {
+        return state;
+    }
+
+    public synchronized int getErrorCount() {
+        return errorCount;
+    }
+
+    private boolean isNight(Calendar _now) {
+        int hour = _now.get(Calendar.HOUR_OF_DAY);
+        if (nightStart <= nightEnd) {
+            return hour >= nightStart && hour < nightEnd;
+        }
+        return hour >= nightStart || hour < nightEnd;
+    }
+}
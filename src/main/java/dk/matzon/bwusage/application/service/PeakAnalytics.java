@@ -0,0 +1,219 @@
+package dk.matzon.bwusage.application.service;
+
+import com.google.gson.Gson;
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.*;
+
+/**
+ * Streaming peak-usage analytics over the historical snapshots.
+ * <p>
+ * Each snapshot holds the usage so far of its day, so consecutive snapshots give the usage of the interval between
+ * them. Intervals are spread over an hour-of-week heatmap (Monday 00-01 first) and the top analytics.peaks intervals
+ * by rate are kept per month, for the last analytics.months months. Memory is bounded by those two settings, no
+ * matter how much history is processed.
+ * <p>
+ * Built with one ordered scan of the historical snapshots at startup, then fed by the data gatherer. Results are
+ * published to peaks.json in the report directory.
+ */
+public class PeakAnalytics implements GatherListener {
+
+    private final Logger LOGGER = LogManager.getLogger(PeakAnalytics.class);
+
+    private final Repository<BWHistoricalEntry> historicalRepository;
+    private final String reportName;
+    private final int maxPeaks;
+    private final int maxMonths;
+
+    private final long[][] heatmap = new long[7][24];
+    private final SortedMap<Integer, PriorityQueue<Peak>> peaks = new TreeMap<>();
+
+    private long previousTime = -1;
+    private long previousUsage;
+
+    public PeakAnalytics(Repository<BWHistoricalEntry> _historicalRepository, Properties _properties) {
+        historicalRepository = _historicalRepository;
+        reportName = _properties.getProperty("reportgenerator.dir", "data/reports") + "/peaks.json";
+        maxPeaks = Integer.parseInt(_properties.getProperty("analytics.peaks", "10"));
+        maxMonths = Integer.parseInt(_properties.getProperty("analytics.months", "24"));
+    }
+
+    /**
+     * (Re)builds the analytics from the full history, e.g. after an import
+     */
+    public synchronized void init() {
+        new File(reportName).getParentFile().mkdirs();
+        for (long[] day : heatmap) {
+            Arrays.fill(day, 0);
+        }
+        peaks.clear();
+        previousTime = -1;
+        long start = System.currentTimeMillis();
+        final long[] count = {0};
+        boolean scanned = historicalRepository.scan(null, null, _entry -> {
+            accept(_entry);
+            count[0]++;
+        });
+        if (!scanned) {
+            LOGGER.warn(String.format("scan failed after %d snapshots, analytics are incomplete until the next init", count[0]));
+        }
+        LOGGER.info(String.format("processed %d snapshots in %d ms", count[0], System.currentTimeMillis() - start));
+        publish();
+    }
+
+    @Override
+    public synchronized void onGather(Date _now, List<BWEntry> _entries) {
+        for (BWEntry entry : _entries) {
+            if (DateUtils.isSameDay(_now, entry.getDate())) {
+                accept(new BWHistoricalEntry(_now, entry.getUpload(), entry.getDownload()));
+            }
+        }
+        publish();
+    }
+
+    /**
+     * @return copy of the hour-of-week heatmap, bytes per [day of week, Monday first][hour]
+     */
+    public synchronized long[][] getHeatmap() {
+        long[][] copy = new long[7][];
+        for (int i = 0; i < 7; i++) {
+            copy[i] = heatmap[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @return top peaks per month (yyyy-M), highest rate first
+     */
+    public synchronized Map<String, List<Peak>> getPeaks() {
+        Map<String, List<Peak>> result = new LinkedHashMap<>();
+        for (Map.Entry<Integer, PriorityQueue<Peak>> month : peaks.entrySet()) {
+            List<Peak> sorted = new ArrayList<>(month.getValue());
+            sorted.sort(Comparator.comparingDouble(Peak::getRate).reversed());
+            result.put(month.getKey() / 100 + "-" + month.getKey() % 100, sorted);
+        }
+        return result;
+    }
+
+    private void accept(BWHistoricalEntry _entry) {
+        long time = _entry.getDate().getTime();
+        long usage = BWUnits.parse(_entry.getUpload()) + BWUnits.parse(_entry.getDownload());
+        if (time <= previousTime) {
+            return;
+        }
+
+        long startOfDay = DateUtils.truncate(_entry.getDate(), Calendar.DAY_OF_MONTH).getTime();
+        long start;
+        long delta;
+        if (previousTime >= startOfDay) {
+            start = previousTime;
+            // the ISP occasionally corrects a day downwards, that is not usage
+            delta = Math.max(0, usage - previousUsage);
+        } else {
+            // first snapshot of the day, counting from midnight
+            start = startOfDay;
+            delta = usage;
+        }
+        previousTime = time;
+        previousUsage = usage;
+        if (delta == 0 || time == start) {
+            return;
+        }
+
+        spread(start, time, delta);
+        addPeak(new Peak(new Date(start), new Date(time), delta));
+    }
+
+    /**
+     * Spreads the usage of an interval over the hours of week it covers, in proportion to the time in each hour
+     */
+    private void spread(long _start, long _end, long _bytes) {
+        ZonedDateTime hour = Instant.ofEpochMilli(_start).atZone(ZoneId.systemDefault()).withMinute(0).withSecond(0).withNano(0);
+        long remaining = _bytes;
+        long from = _start;
+        while (from < _end) {
+            ZonedDateTime nextHour = hour.plusHours(1);
+            long to = Math.min(nextHour.toInstant().toEpochMilli(), _end);
+            long bytes = to == _end ? remaining : _bytes * (to - from) / (_end - _start);
+            heatmap[hour.getDayOfWeek().getValue() - 1][hour.getHour()] += bytes;
+            remaining -= bytes;
+            from = to;
+            hour = nextHour;
+        }
+    }
+
+    private void addPeak(Peak _peak) {
+        Calendar calendar = DateUtils.toCalendar(_peak.end);
+        int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+        PriorityQueue<Peak> monthPeaks = peaks.get(month);
+        if (monthPeaks == null) {
+            if (peaks.size() >= maxMonths && month < peaks.firstKey()) {
+                return;
+            }
+            monthPeaks = new PriorityQueue<>(Comparator.comparingDouble(Peak::getRate));
+            peaks.put(month, monthPeaks);
+            while (peaks.size() > maxMonths) {
+                peaks.remove(peaks.firstKey());
+            }
+        }
+        monthPeaks.add(_peak);
+        if (monthPeaks.size() > maxPeaks) {
+            monthPeaks.poll();
+        }
+    }
+
+    private void publish() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("heatmap", heatmap);
+        report.put("peaks", getPeaks());
+        try {
+            ReportFiles.writeAtomically(reportName, _writer -> new Gson().toJson(report, _writer));
+        } catch (IOException _e) {
+            LOGGER.warn("Exception while writing " + reportName + ": " + _e.getMessage(), _e);
+        }
+    }
+
+    public static class Peak implements Serializable {
+        private final Date start;
+        private final Date end;
+        private final long bytes;
+        /**
+         * bytes per second
+         */
+        private final double rate;
+
+        Peak(Date _start, Date _end, long _bytes) {
+            start = _start;
+            end = _end;
+            bytes = _bytes;
+            rate = _bytes * 1000.0 / (_end.getTime() - _start.getTime());
+        }
+
+        public Date getStart() {
+            return start;
+        }
+
+        public Date getEnd() {
+            return end;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package dk.matzon.bwusage.application.service;
+
+import dk.matzon.bwusage.domain.GatherListener;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Incremental quota tracking, fed by the data gatherer.
+ * <p>
+ * Keeps the usage of each day in the current month and a running month total, which is adjusted by the difference
+ * whenever a day changes, so each sample is O(1) and history is never rescanned. Alerts are raised once per month for
+ * each crossed threshold (percentages of quota.limit), once per day when the projected end of month usage exceeds the
+ * quota, and once per day when quota.daily.limit is exceeded. Alerts are logged and, if quota.hook is configured,
+ * passed to that command as arguments: type, message.
+ */
+public class QuotaTracker implements GatherListener {
+
+    public enum DIRECTION {
+        TOTAL,
+        DOWNLOAD,
+        UPLOAD
+    }
+
+    private final Logger LOGGER = LogManager.getLogger(QuotaTracker.class);
+    private final Repository<BWEntry> repository;
+
+    private final long limit;
+    private final long dailyLimit;
+    private final int[] thresholds;
+    private final DIRECTION direction;
+    private final int projectionMinDay;
+    private final String hook;
+
+    private Calendar month;
+    private final long[] dayUsage = new long[32];
+    private long monthTotal;
+    private final Set<Integer> firedThresholds = new HashSet<>();
+    private int projectionAlertDay = -1;
+    private int dailyAlertDay = -1;
+    private long projected;
+
+    public QuotaTracker(Repository<BWEntry> _repository, Properties _properties) {
+        repository = _repository;
+        String limitProperty = _properties.getProperty("quota.limit");
+        limit = limitProperty != null ? BWUnits.parse(limitProperty) : 0;
+        String dailyLimitProperty = _properties.getProperty("quota.daily.limit");
+        dailyLimit = dailyLimitProperty != null ? BWUnits.parse(dailyLimitProperty) : 0;
+        String[] thresholdTokens = _properties.getProperty("quota.thresholds", "75,90,100").split(",");
+        thresholds = new int[thresholdTokens.length];
+        for (int i = 0; i < thresholdTokens.length; i++) {
+            thresholds[i] = Integer.parseInt(thresholdTokens[i].trim());
+        }
+        Arrays.sort(thresholds);
+        direction = DIRECTION.valueOf(_properties.getProperty("quota.direction", "total").toUpperCase());
+        projectionMinDay = Integer.parseInt(_properties.getProperty("quota.projection.minday", "3"));
+        hook = _properties.getProperty("quota.hook");
+    }
+
+    /**
+     * Seeds the tracker with the current month, the only time the repository is read apart from re-seeding after an
+     * import
+     */
+    public synchronized void init() {
+        Date now = new Date();
+        Date startOfMonth = DateUtils.truncate(now, Calendar.MONTH);
+        Date endOfMonth = DateUtils.addSeconds(DateUtils.ceiling(now, Calendar.MONTH), -1);
+        List<BWEntry> monthly = repository.findByDate(startOfMonth, endOfMonth);
+        for (BWEntry entry : monthly) {
+            update(entry);
+        }
+        // don't alert on what was already known at startup
+        evaluate(now, false);
+        LOGGER.info(String.format("initialized with %d days, month total: %s", monthly.size(), BWUnits.format(monthTotal)));
+    }
+
+    @Override
+    public synchronized void onGather(Date _now, List<BWEntry> _entries) {
+        for (BWEntry entry : _entries) {
+            update(entry);
+        }
+        evaluate(_now, true);
+    }
+
+    public synchronized long getMonthTotal() {
+        return monthTotal;
+    }
+
+    public synchronized long getProjected() {
+        return projected;
+    }
+
+    public synchronized void printStatus() {
+        Date now = new Date();
+        int today = DateUtils.toCalendar(now).get(Calendar.DAY_OF_MONTH);
+        System.out.println(String.format("month: %s, today: %s, projected: %s, limit: %s",
+                BWUnits.format(monthTotal), BWUnits.format(isCurrentMonth(now) ? dayUsage[today] : 0), BWUnits.format(projected),
+                limit > 0 ? BWUnits.format(limit) : "none"));
+    }
+
+    /**
+     * Applies a day's usage to the running totals, entries outside the current month only roll the month forward
+     */
+    private void update(BWEntry _entry) {
+        Calendar day = DateUtils.toCalendar(_entry.getDate());
+        if (month == null || after(day, month)) {
+            rollover(day);
+        }
+        if (!isSameMonth(day, month)) {
+            return;
+        }
+        int dayOfMonth = day.get(Calendar.DAY_OF_MONTH);
+        long usage = usage(_entry);
+        monthTotal += usage - dayUsage[dayOfMonth];
+        dayUsage[dayOfMonth] = usage;
+    }
+
+    private void evaluate(Date _now, boolean _alert) {
+        Calendar now = DateUtils.toCalendar(_now);
+        if (month == null || after(now, month)) {
+            rollover(now);
+        }
+        int dayOfMonth = now.get(Calendar.DAY_OF_MONTH);
+
+        long startOfMonth = DateUtils.truncate(_now, Calendar.MONTH).getTime();
+        long endOfMonth = DateUtils.ceiling(_now, Calendar.MONTH).getTime();
+        double elapsed = (double) (_now.getTime() - startOfMonth) / (endOfMonth - startOfMonth);
+        projected = elapsed > 0 ? Math.round(monthTotal / elapsed) : monthTotal;
+
+        if (limit > 0) {
+            long percentage = monthTotal * 100 / limit;
+            for (int threshold : thresholds) {
+                if (percentage >= threshold && firedThresholds.add(threshold) && _alert) {
+                    alert("threshold", String.format("%d%% of monthly quota used: %s of %s", threshold, BWUnits.format(monthTotal), BWUnits.format(limit)));
+                }
+            }
+            if (dayOfMonth >= projectionMinDay && projected > limit && projectionAlertDay != dayOfMonth) {
+                projectionAlertDay = dayOfMonth;
+                if (_alert) {
+                    alert("projection", String.format("projected monthly usage %s exceeds quota %s", BWUnits.format(projected), BWUnits.format(limit)));
+                }
+            }
+        }
+        if (dailyLimit > 0 && dayUsage[dayOfMonth] > dailyLimit && dailyAlertDay != dayOfMonth) {
+            dailyAlertDay = dayOfMonth;
+            if (_alert) {
+                alert("daily", String.format("daily usage %s exceeds daily limit %s", BWUnits.format(dayUsage[dayOfMonth]), BWUnits.format(dailyLimit)));
+            }
+        }
+    }
+
+    protected void alert(String _type, String _message) {
+        LOGGER.warn(String.format("quota alert [%s]: %s", _type, _message));
+        if (hook != null) {
+            try {
+                new ProcessBuilder(hook, _type, _message).inheritIO().start();
+            } catch (IOException _e) {
+                LOGGER.warn("Exception while running quota hook '" + hook + "': " + _e.getMessage(), _e);
+            }
+        }
+    }
+
+    private long usage(BWEntry _entry) {
+        switch (direction) {
+            case DOWNLOAD:
+                return BWUnits.parse(_entry.getDownload());
+            case UPLOAD:
+                return BWUnits.parse(_entry.getUpload());
+            case TOTAL:
+            default:
+                return BWUnits.parse(_entry.getDownload()) + BWUnits.parse(_entry.getUpload());
+        }
+    }
+
+    private void rollover(Calendar _day) {
+        month = DateUtils.truncate(_day, Calendar.MONTH);
+        Arrays.fill(dayUsage, 0);
+        monthTotal = 0;
+        firedThresholds.clear();
+        projectionAlertDay = -1;
+        dailyAlertDay = -1;
+    }
+
+    private boolean isCurrentMonth(Date _now) {
+        return month != null && isSameMonth(DateUtils.toCalendar(_now), month);
+    }
+
+    private static boolean isSameMonth(Calendar _a, Calendar _b) {
+        return _a.get(Calendar.YEAR) == _b.get(Calendar.YEAR) && _a.get(Calendar.MONTH) == _b.get(Calendar.MONTH);
+    }
+
+    private static boolean after(Calendar _day, Calendar _month) {
+        return _day.get(Calendar.YEAR) * 12 + _day.get(Calendar.MONTH) > _month.get(Calendar.YEAR) * 12 + _month.get(Calendar.MONTH);
+    }
+}
@@ -0,0 +1,44 @@
+package dk.matzon.bwusage.application.service;
+
+import com.google.gson.JsonIOException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the files served from the report directory, so a reader never sees a partially written one.
+ */
+final class ReportFiles {
+
+    private ReportFiles() {
+    }
+
+    /**
+     * Writes to a temporary file next to the report, which then replaces the report in one move
+     *
+     * @param _name         path of the report
+     * @param _reportWriter writes the contents
+     * @throws IOException if the report could not be written, in which case the previous report is left as is
+     */
+    static void writeAtomically(String _name, ReportWriter _reportWriter) throws IOException {
+        File report = new File(_name);
+        // in the same directory for the move to be atomic, and created with the default permissions the reports are served with
+        File temporary = File.createTempFile(report.getName(), ".tmp", report.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+                _reportWriter.write(writer);
+            } catch (JsonIOException _e) {
+                throw new IOException(_e.getMessage(), _e.getCause());
+            }
+            Files.move(temporary.toPath(), report.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    interface ReportWriter {
+        void write(Writer _writer) throws IOException;
+    }
+}
@@ -1,29 +1,40 @@
 package dk.matzon.bwusage.application.service;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import dk.matzon.bwusage.domain.ReportGenerator;
 import dk.matzon.bwusage.domain.Repository;
 import dk.matzon.bwusage.domain.model.BWEntry;
 import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWTotal;
 import org.apache.commons.lang3.time.DateUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hsqldb.lib.StopWatch;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Created by Brian Matzon <brian@matzon.dk>.
  */
 public class ReportGeneratorImpl implements ReportGenerator {
+    /**
+     * Reports written in parallel by generateReports: today, month and the previous month on rollover
+     */
+    private static final int WRITER_THREADS = 3;
+
     private final Logger LOGGER = LogManager.getLogger(ReportGeneratorImpl.class);
     private final ScheduledExecutorService scheduledExecutorService;
+    private final ExecutorService writerExecutorService;
     private final Repository<BWEntry> repository;
     private Repository<BWHistoricalEntry> historicalRepository;
     private final Properties properties;
+    private final String reportDirectory;
+    private final DailyTotalsIndex totalsIndex;
 
     private ScheduledFuture<?> scheduledTodayFuture;
     private ScheduledFuture<?> scheduledMonthFuture;
@@ -33,15 +44,27 @@ public class ReportGeneratorImpl implements ReportGenerator {
     private Date lastRun;
 
     public ReportGeneratorImpl(ScheduledExecutorService _scheduledExecutorService, Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository, Properties _properties) {
+        this(_scheduledExecutorService, _repository, _historicalRepository, _properties, new DailyTotalsIndex(_repository));
+    }
+
+    public ReportGeneratorImpl(ScheduledExecutorService _scheduledExecutorService, Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository, Properties _properties, DailyTotalsIndex _totalsIndex) {
         scheduledExecutorService = _scheduledExecutorService;
         repository = _repository;
         historicalRepository = _historicalRepository;
         properties = _properties;
+        reportDirectory = _properties.getProperty("reportgenerator.dir", "data/reports");
+        totalsIndex = _totalsIndex;
+        writerExecutorService = Executors.newFixedThreadPool(WRITER_THREADS, _runnable -> {
+            Thread thread = new Thread(_runnable, "reportgenerator-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void init() {
         LOGGER.info("initializing");
+        new File(reportDirectory).mkdirs();
         Long delay = Long.parseLong(properties.getProperty("reportgenerator.delay"));
         scheduledTodayFuture = scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
             @Override
@@ -71,6 +94,7 @@ public class ReportGeneratorImpl implements ReportGenerator {
         scheduledTodayFuture.cancel(true);
         scheduledMonthFuture.cancel(true);
         scheduledAllFuture.cancel(true);
+        writerExecutorService.shutdown();
     }
 
     @Override
@@ -81,7 +105,7 @@ public class ReportGeneratorImpl implements ReportGenerator {
     @Override
     public synchronized void generateReport(REPORT_TYPE _reportType) {
         try {
-            Date now = new Date();
+            Date now = now();
             switch (_reportType) {
                 case TODAY:
                     reportForToday(now, true);
@@ -95,7 +119,7 @@ public class ReportGeneratorImpl implements ReportGenerator {
                     lastRun = now;
                     break;
                 case ALL:
-                    reportForAll(true);
+                    writeAllReport(null);
                     break;
             }
             errorCount = 0;
@@ -107,6 +131,140 @@ public class ReportGeneratorImpl implements ReportGenerator {
         }
     }
 
+    @Override
+    public synchronized void generateReports() {
+        try {
+            StopWatch stopWatch = new StopWatch();
+            Date now = now();
+            Date startOfDay = DateUtils.truncate(now, Calendar.DAY_OF_MONTH);
+            Date endOfDay = DateUtils.addSeconds(DateUtils.ceiling(now, Calendar.DAY_OF_MONTH), -1);
+
+            // one scan per table, the full daily scan is streamed to the all report and month reports are fanned out of it
+            final List<BWEntry> monthly = new ArrayList<>();
+            final List<BWEntry> previousMonthly = new ArrayList<>();
+            final boolean rollover = lastRun != null && DateUtils.toCalendar(now).get(Calendar.MONTH) != DateUtils.toCalendar(lastRun).get(Calendar.MONTH);
+            // month bounds as millis, rather than truncating a Calendar per scanned entry
+            final long startOfMonth = DateUtils.truncate(now, Calendar.MONTH).getTime();
+            final long endOfMonth = DateUtils.ceiling(now, Calendar.MONTH).getTime();
+            final long startOfPreviousMonth = rollover ? DateUtils.truncate(lastRun, Calendar.MONTH).getTime() : 0;
+            final long endOfPreviousMonth = rollover ? DateUtils.ceiling(lastRun, Calendar.MONTH).getTime() : 0;
+            long all = writeAllReport(_entry -> {
+                long time = _entry.getDate().getTime();
+                if (time >= startOfMonth && time < endOfMonth) {
+                    monthly.add(_entry);
+                } else if (time >= startOfPreviousMonth && time < endOfPreviousMonth) {
+                    previousMonthly.add(_entry);
+                }
+            });
+            List<BWHistoricalEntry> today = historicalRepository.findByDate(startOfDay, endOfDay);
+
+            List<CompletableFuture<Void>> sinks = new ArrayList<>();
+            sinks.add(writeReportAsync(monthly, monthReportName(now)));
+            sinks.add(writeReportAsync(today, dayReportName(now)));
+            if (rollover) {
+                sinks.add(writeReportAsync(previousMonthly, monthReportName(lastRun)));
+            }
+            CompletableFuture.allOf(sinks.toArray(new CompletableFuture<?>[0])).join();
+            lastRun = now;
+
+            LOGGER.info(stopWatch.currentElapsedTimeToMessage(String.format("Generated %d reports from one scan per table (%d rows)", sinks.size() + 1, all + today.size())));
+            errorCount = 0;
+        } catch (Exception _e) {
+            LOGGER.warn("Exception occurred while generating combined reports: " + _e.getMessage(), _e);
+            if (++errorCount == Integer.valueOf(properties.getProperty("reportgenerator.maxerrorcount"))) {
+                shutdown();
+            }
+        }
+    }
+
+    /**
+     * Each table is scanned once in date order. Whenever a day (historical entries) or month (daily entries) is
+     * complete, its report is written by a ForkJoinPool of reportgenerator.rebuild.threads threads, with at most a few
+     * reports per thread pending, so memory stays bounded while the scan continues. If a scan fails, the reports from
+     * the period it stopped in on are left as they were, and the rebuild is reported as incomplete.
+     */
+    @Override
+    public synchronized int rebuildReports() {
+        long start = System.currentTimeMillis();
+        int threads = Integer.parseInt(properties.getProperty("reportgenerator.rebuild.threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Semaphore pending = new Semaphore(threads * 4);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        final long[] rows = {0};
+        try {
+            boolean scanned = rebuild(historicalRepository, BWHistoricalEntry::getDate, Calendar.DAY_OF_MONTH, this::dayReportName, pool, pending, tasks, rows);
+            int days = tasks.size();
+            scanned &= rebuild(repository, BWEntry::getDate, Calendar.MONTH, this::monthReportName, pool, pending, tasks, rows);
+            int months = tasks.size() - days;
+
+            int failed = 0;
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.join();
+                } catch (RuntimeException _e) {
+                    failed++;
+                    LOGGER.warn("Exception while rebuilding report: " + _e.getMessage(), _e);
+                }
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            String message = String.format("rebuilt %d day and %d month reports (%d failed) from %d rows in %d ms (%d reports/sec, %d rows/sec)%s",
+                    days, months, failed, rows[0], elapsed, tasks.size() * 1000L / elapsed, rows[0] * 1000 / elapsed,
+                    scanned ? "" : ", incomplete: reading the history failed");
+            if (scanned) {
+                LOGGER.info(message);
+            } else {
+                LOGGER.warn(message);
+            }
+            System.out.println(message);
+            return tasks.size() - failed;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Scans a repository, submitting a report for each complete period
+     *
+     * @param _rows incremented for each row scanned
+     * @return true if the scan completed, otherwise the period it stopped in is not submitted
+     */
+    private <T extends Serializable> boolean rebuild(Repository<T> _repository, Function<T, Date> _date, int _field, Function<Date, String> _reportName, ForkJoinPool _pool, Semaphore _pending, List<ForkJoinTask<?>> _tasks, final long[] _rows) {
+        final List<T> period = new ArrayList<>();
+        final Date[] periodStart = {null};
+        boolean scanned = _repository.scan(null, null, _entity -> {
+            Date start = DateUtils.truncate(_date.apply(_entity), _field);
+            if (periodStart[0] != null && !start.equals(periodStart[0])) {
+                submit(new ArrayList<>(period), _reportName.apply(periodStart[0]), _pool, _pending, _tasks);
+                period.clear();
+            }
+            periodStart[0] = start;
+            period.add(_entity);
+            _rows[0]++;
+        });
+        if (!scanned) {
+            LOGGER.warn(String.format("scan failed after %d rows, not rebuilding %s or later", _rows[0], periodStart[0] != null ? _reportName.apply(periodStart[0]) : "any report"));
+            return false;
+        }
+        if (periodStart[0] != null) {
+            submit(period, _reportName.apply(periodStart[0]), _pool, _pending, _tasks);
+        }
+        return true;
+    }
+
+    private void submit(final List<? extends Serializable> _entries, final String _name, ForkJoinPool _pool, final Semaphore _pending, List<ForkJoinTask<?>> _tasks) {
+        // the scan waits for a writer, rather than piling up periods in memory
+        _pending.acquireUninterruptibly();
+        _tasks.add(_pool.submit(() -> {
+            try {
+                writeReport(_entries, _name);
+            } catch (IOException _e) {
+                throw new UncheckedIOException(_e);
+            } finally {
+                _pending.release();
+            }
+        }));
+    }
+
     @Override
     public void list(REPORT_TYPE _reportType) {
         List<? extends Serializable> entries = null;
@@ -114,13 +272,14 @@ public class ReportGeneratorImpl implements ReportGenerator {
         try {
             switch (_reportType) {
                 case ALL:
-                    entries = reportForAll(false);
-                    break;
+                    // streamed, the full history is never held in memory
+                    repository.scan(null, null, System.out::println);
+                    return;
                 case MONTH:
-                    entries = reportForMonth(new Date(), false);
+                    entries = reportForMonth(now(), false);
                     break;
                 case TODAY:
-                    entries = reportForToday(new Date(), false);
+                    entries = reportForToday(now(), false);
                     break;
             }
         } catch (IOException _e) {
@@ -132,25 +291,45 @@ public class ReportGeneratorImpl implements ReportGenerator {
         }
     }
 
-    public List<BWEntry> reportForAll(boolean _writeReport) throws IOException {
-        List<BWEntry> all = repository.findAll();
-        if (_writeReport) {
-            writeReport(all, "data/reports/all.json");
-        }
-        return all;
+    @Override
+    public BWTotal sum(Date _from, Date _to) {
+        return totalsIndex.sum(_from, _to);
+    }
+
+    /**
+     * Streams every entry, a month at a time, to the all report, which is only replaced once the scan has completed
+     *
+     * @param _consumer optional Consumer also receiving each entry
+     * @return number of entries written
+     */
+    private long writeAllReport(Consumer<BWEntry> _consumer) throws IOException {
+        final Gson gson = new Gson();
+        final long[] count = {0};
+        ReportFiles.writeAtomically(allReportName(), _writer -> {
+            JsonWriter jsonWriter = new JsonWriter(_writer);
+            jsonWriter.beginArray();
+            boolean scanned = repository.scan(null, null, _entry -> {
+                gson.toJson(_entry, BWEntry.class, jsonWriter);
+                count[0]++;
+                if (_consumer != null) {
+                    _consumer.accept(_entry);
+                }
+            });
+            if (!scanned) {
+                throw new IOException(String.format("Scan failed after %d entries, keeping the previous all report", count[0]));
+            }
+            jsonWriter.endArray();
+        });
+        return count[0];
     }
 
     public List<BWEntry> reportForMonth(Date _date, boolean _writeReport) throws IOException {
         Date startOfMonth = DateUtils.truncate(_date, Calendar.MONTH);
         Date endOfMonth = DateUtils.addSeconds(DateUtils.ceiling(_date, Calendar.MONTH), -1);
 
-        Calendar calendar = DateUtils.toCalendar(startOfMonth);
-        String month = String.valueOf(calendar.get(Calendar.MONTH) + 1);
-        String year = String.valueOf(calendar.get(Calendar.YEAR));
-
         List<BWEntry> monthly = repository.findByDate(startOfMonth, endOfMonth);
         if (_writeReport) {
-            writeReport(monthly, String.format("data/reports/%s-%s.json", year, month));
+            writeReport(monthly, monthReportName(_date));
         }
         return monthly;
     }
@@ -159,24 +338,51 @@ public class ReportGeneratorImpl implements ReportGenerator {
         Date startOfDay = DateUtils.truncate(_date, Calendar.DAY_OF_MONTH);
         Date endOfDay = DateUtils.addSeconds(DateUtils.ceiling(_date, Calendar.DAY_OF_MONTH), -1);
 
-        Calendar calendar = DateUtils.toCalendar(startOfDay);
-        String year = String.valueOf(calendar.get(Calendar.YEAR));
-        String month = String.valueOf(calendar.get(Calendar.MONTH) + 1);
-        String day = String.valueOf(calendar.get(Calendar.DAY_OF_MONTH));
-
         List<BWHistoricalEntry> today = historicalRepository.findByDate(startOfDay, endOfDay);
         if (_writeReport) {
-            writeReport(today, String.format("data/reports/%s-%s-%s.json", year, month, day));
+            writeReport(today, dayReportName(_date));
         }
         return today;
     }
 
+    private String allReportName() {
+        return reportDirectory + "/all.json";
+    }
+
+    private String monthReportName(Date _date) {
+        Calendar calendar = DateUtils.toCalendar(_date);
+        String month = String.valueOf(calendar.get(Calendar.MONTH) + 1);
+        String year = String.valueOf(calendar.get(Calendar.YEAR));
+        return String.format("%s/%s-%s.json", reportDirectory, year, month);
+    }
+
+    private String dayReportName(Date _date) {
+        Calendar calendar = DateUtils.toCalendar(_date);
+        String year = String.valueOf(calendar.get(Calendar.YEAR));
+        String month = String.valueOf(calendar.get(Calendar.MONTH) + 1);
+        String day = String.valueOf(calendar.get(Calendar.DAY_OF_MONTH));
+        return String.format("%s/%s-%s-%s.json", reportDirectory, year, month, day);
+    }
+
+    /**
+     * @return the current time, which reports are generated for
+     */
+    protected Date now() {
+        return new Date();
+    }
+
+    private CompletableFuture<Void> writeReportAsync(final List<? extends Serializable> _entries, final String _name) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                writeReport(_entries, _name);
+            } catch (IOException _e) {
+                throw new CompletionException(_e);
+            }
+        }, writerExecutorService);
+    }
+
     private void writeReport(List<? extends Serializable> _entries, String name) throws IOException {
         Gson gson = new Gson();
-        String json = gson.toJson(_entries);
-
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new FileOutputStream(new File(name)));
-        outputStreamWriter.write(json);
-        outputStreamWriter.close();
+        ReportFiles.writeAtomically(name, _writer -> gson.toJson(_entries, _writer));
     }
 }
@@ -0,0 +1,56 @@
+package dk.matzon.bwusage.application.service;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import dk.matzon.bwusage.domain.model.BWEntry;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parser for the ISP bandwidth response, a JSON object of days, each holding the "down" and "up" usage for the day
+ */
+public class ResponseParser {
+
+    private ResponseParser() {
+    }
+
+    /**
+     * @throws ParseException if the page is not a well-formed response
+     */
+    public static List<BWEntry> parse(String _page) throws ParseException {
+        List<BWEntry> entries = new ArrayList<>();
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        sdf.setLenient(false);
+
+        try {
+            JsonElement jsonElement = new JsonParser().parse(_page);
+            JsonObject jsonObject = jsonElement.getAsJsonObject();
+            Set<Map.Entry<String, JsonElement>> sourceEntries = jsonObject.entrySet();
+            for (Map.Entry<String, JsonElement> sourceEntry : sourceEntries) {
+                JsonElement download = sourceEntry.getValue().getAsJsonObject().get("down");
+                JsonElement upload = sourceEntry.getValue().getAsJsonObject().get("up");
+                if (download == null || upload == null) {
+                    throw new ParseException("Missing usage for " + sourceEntry.getKey(), 0);
+                }
+                Date parsedDate = sdf.parse(sourceEntry.getKey());
+                BWEntry reportEntry = new BWEntry(parsedDate, upload.getAsString(), download.getAsString());
+                entries.add(reportEntry);
+            }
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException _e) {
+            // gson signals malformed or unexpected structure with these
+            ParseException parseException = new ParseException("Malformed response: " + _e.getMessage(), 0);
+            parseException.initCause(_e);
+            throw parseException;
+        }
+        return entries;
+    }
+}
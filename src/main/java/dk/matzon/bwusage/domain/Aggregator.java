@@ -0,0 +1,17 @@
+package dk.matzon.bwusage.domain;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public interface Aggregator {
+    void init();
+
+    void shutdown();
+
+    boolean isRunning();
+
+    /**
+     * @param _listener GatherListener to notify with the combined entries after each ingested batch
+     */
+    void addListener(GatherListener _listener);
+}
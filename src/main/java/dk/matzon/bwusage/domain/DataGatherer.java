@@ -12,4 +12,15 @@ public interface DataGatherer {
 
     void downloadData();
 
+    /**
+     * @param _listener GatherListener to notify after each successful gather
+     */
+    void addListener(GatherListener _listener);
+
+    /**
+     * Forgets what the gatherer last persisted, after the repository was changed by other means than gathering,
+     * e.g. an import or a seal
+     */
+    void invalidate();
+
 }
@@ -0,0 +1,21 @@
+package dk.matzon.bwusage.domain;
+
+import dk.matzon.bwusage.domain.model.BWImportResult;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public interface DataImporter {
+
+    /**
+     * Import bandwidth usage from a CSV or ISP JSON dump, or from all such dumps in a directory
+     *
+     * @param _source file or directory to import
+     * @return BWImportResult with the rows inserted or updated, and the files and rows which were left out
+     * @throws IOException if the source can't be read, or nothing in it could be imported
+     */
+    BWImportResult importData(File _source) throws IOException;
+}
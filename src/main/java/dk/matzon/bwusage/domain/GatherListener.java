@@ -0,0 +1,20 @@
+package dk.matzon.bwusage.domain;
+
+import dk.matzon.bwusage.domain.model.BWEntry;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public interface GatherListener {
+
+    /**
+     * Invoked after each successful gather, once the entries have been persisted
+     *
+     * @param _now     time of the gather
+     * @param _entries entries returned by the ISP
+     */
+    void onGather(Date _now, List<BWEntry> _entries);
+}
@@ -1,5 +1,9 @@
 package dk.matzon.bwusage.domain;
 
+import dk.matzon.bwusage.domain.model.BWTotal;
+
+import java.util.Date;
+
 /**
  * Created by Brian Matzon <brian@matzon.dk>.
  */
@@ -25,10 +29,31 @@ public interface ReportGenerator {
      */
     void generateReport(REPORT_TYPE _reportType);
 
+    /**
+     * Generate all standard reports in one pass, scanning each table once and writing the reports in parallel
+     */
+    void generateReports();
+
+    /**
+     * Regenerate every day and month report for the full history
+     *
+     * @return number of reports written
+     */
+    int rebuildReports();
+
     /**
      * List report for REPORT_TYPE
      *
      * @param _reportType REPORT_TYPE to list elements for
      */
     void list(REPORT_TYPE _reportType);
+
+    /**
+     * Total usage for a range of days
+     *
+     * @param _from first day (inclusive)
+     * @param _to   last day (inclusive)
+     * @return BWTotal for the range
+     */
+    BWTotal sum(Date _from, Date _to);
 }
@@ -2,6 +2,7 @@ package dk.matzon.bwusage.domain;
 
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Created by Brian Matzon <brian@matzon.dk>
@@ -19,6 +20,16 @@ public interface Repository<T> {
      */
     List<T> findByDate(Date _from, Date _to);
 
+    /**
+     * Streams Ts in date order, holding at most a month of Ts in memory at a time
+     *
+     * @param _from     Date (inclusive) to stream Ts from, null for the first T
+     * @param _to       Date (inclusive) to stream Ts to, null for the last T
+     * @param _consumer Consumer receiving each T
+     * @return true if every T in the range was streamed, false if the scan failed part way
+     */
+    boolean scan(Date _from, Date _to, Consumer<T> _consumer);
+
     /**
      * @param _entity T to save
      * @return Saved T
@@ -36,4 +47,20 @@ public interface Repository<T> {
      * @return true if T was saved
      */
     boolean saveAll(List<T> _entities);
+
+    /**
+     * Saves the Ts which are new or changed, skipping duplicates within the list and Ts already stored unchanged
+     *
+     * @param _entities List of Ts to save
+     * @return number of Ts inserted or updated, or -1 if the Ts could not be saved and nothing was written
+     */
+    int saveAllDistinct(List<T> _entities);
+
+    /**
+     * Seals Ts dated before the supplied date into read-only monthly partitions, only the open months stay writable
+     *
+     * @param _before Date (exclusive) to seal Ts before
+     * @return number of Ts sealed
+     */
+    int seal(Date _before);
 }
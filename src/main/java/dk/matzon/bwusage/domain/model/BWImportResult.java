@@ -0,0 +1,64 @@
+package dk.matzon.bwusage.domain.model;
+
+/**
+ * Outcome of an import: rows read, rows inserted or updated, and what had to be left out
+ */
+public class BWImportResult {
+
+    private final int files;
+    private final long rows;
+    private final long saved;
+    private final int skippedFiles;
+    private final long rejectedRows;
+
+    public BWImportResult(int _files, long _rows, long _saved, int _skippedFiles, long _rejectedRows) {
+        files = _files;
+        rows = _rows;
+        saved = _saved;
+        skippedFiles = _skippedFiles;
+        rejectedRows = _rejectedRows;
+    }
+
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * @return rows read from the files, before duplicates are resolved
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return rows inserted or updated, rows already stored unchanged are not counted
+     */
+    public long getSaved() {
+        return saved;
+    }
+
+    /**
+     * @return files which could not be parsed at all
+     */
+    public int getSkippedFiles() {
+        return skippedFiles;
+    }
+
+    /**
+     * @return lines or entries with an invalid date or usage, including CSV headers
+     */
+    public long getRejectedRows() {
+        return rejectedRows;
+    }
+
+    @Override
+    public String toString() {
+        return "BWImportResult{" +
+                "files=" + files +
+                ", rows=" + rows +
+                ", saved=" + saved +
+                ", skippedFiles=" + skippedFiles +
+                ", rejectedRows=" + rejectedRows +
+                '}';
+    }
+}
@@ -0,0 +1,118 @@
+package dk.matzon.bwusage.domain.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Daily usage of a single site, as forwarded to an aggregator
+ */
+@Entity
+@IdClass(BWSiteEntry.Key.class)
+public class BWSiteEntry implements Serializable {
+
+    @Id
+    private String site;
+    @Id
+    private Date date;
+    private String upload;
+    private String download;
+
+    public BWSiteEntry() {
+    }
+
+    public BWSiteEntry(String _site, Date _date, String _upload, String _download) {
+        site = _site;
+        date = _date;
+        upload = _upload;
+        download = _download;
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    public void setSite(String _site) {
+        site = _site;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date _date) {
+        date = _date;
+    }
+
+    public String getUpload() {
+        return upload;
+    }
+
+    public void setUpload(String _upload) {
+        upload = _upload;
+    }
+
+    public String getDownload() {
+        return download;
+    }
+
+    public void setDownload(String _download) {
+        download = _download;
+    }
+
+    @Override
+    public boolean equals(Object _o) {
+        if (this == _o) return true;
+        if (_o == null || getClass() != _o.getClass()) return false;
+        BWSiteEntry that = (BWSiteEntry) _o;
+        return Objects.equals(site, that.site) &&
+                Objects.equals(date, that.date) &&
+                Objects.equals(upload, that.upload) &&
+                Objects.equals(download, that.download);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(site, date, upload, download);
+    }
+
+    @Override
+    public String toString() {
+        return "BWSiteEntry{" +
+                "site='" + site + '\'' +
+                ", date=" + date +
+                ", upload='" + upload + '\'' +
+                ", download='" + download + '\'' +
+                '}';
+    }
+
+    public static class Key implements Serializable {
+        private String site;
+        private Date date;
+
+        public Key() {
+        }
+
+        public Key(String _site, Date _date) {
+            site = _site;
+            date = _date;
+        }
+
+        @Override
+        public boolean equals(Object _o) {
+            if (this == _o) return true;
+            if (_o == null || getClass() != _o.getClass()) return false;
+            Key key = (Key) _o;
+            return Objects.equals(site, key.site) &&
+                    Objects.equals(date == null ? null : date.getTime(), key.date == null ? null : key.date.getTime());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(site, date == null ? null : date.getTime());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package dk.matzon.bwusage.domain.model;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Total upload and download, in bytes, over a range of days
+ */
+public class BWTotal implements Serializable {
+
+    private final long upload;
+    private final long download;
+
+    public BWTotal(long _upload, long _download) {
+        upload = _upload;
+        download = _download;
+    }
+
+    public long getUpload() {
+        return upload;
+    }
+
+    public long getDownload() {
+        return download;
+    }
+
+    @Override
+    public boolean equals(Object _o) {
+        if (this == _o) return true;
+        if (_o == null || getClass() != _o.getClass()) return false;
+        BWTotal bwTotal = (BWTotal) _o;
+        return upload == bwTotal.upload &&
+                download == bwTotal.download;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(upload, download);
+    }
+
+    @Override
+    public String toString() {
+        return "BWTotal{" +
+                "upload='" + BWUnits.format(upload) + '\'' +
+                ", download='" + BWUnits.format(download) + '\'' +
+                ", total='" + BWUnits.format(upload + download) + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,60 @@
+package dk.matzon.bwusage.domain.model;
+
+import java.util.Locale;
+
+/**
+ * Conversion between the ISP's human readable sizes ("21.7 GB", "730 MB") and bytes, using 1024 as base like the
+ * frontend does
+ */
+public final class BWUnits {
+
+    private static final String[] UNITS = {"B", "KB", "MB", "GB", "TB"};
+
+    private BWUnits() {
+    }
+
+    /**
+     * @param _value size such as "21.7 GB", a missing unit means bytes
+     * @return size in bytes
+     * @throws IllegalArgumentException if the value can not be parsed
+     */
+    public static long parse(String _value) {
+        if (_value == null) {
+            throw new IllegalArgumentException("No value");
+        }
+        String value = _value.trim().toUpperCase(Locale.ROOT);
+        int unitIndex = 0;
+        for (int i = UNITS.length - 1; i > 0; i--) {
+            if (value.endsWith(UNITS[i])) {
+                unitIndex = i;
+                value = value.substring(0, value.length() - UNITS[i].length()).trim();
+                break;
+            }
+        }
+        if (unitIndex == 0 && value.endsWith("B")) {
+            value = value.substring(0, value.length() - 1).trim();
+        }
+        try {
+            return Math.round(Double.parseDouble(value) * Math.pow(1024, unitIndex));
+        } catch (NumberFormatException _e) {
+            throw new IllegalArgumentException("Unable to parse size '" + _value + "'", _e);
+        }
+    }
+
+    /**
+     * @param _bytes size in bytes
+     * @return size in the largest unit keeping the value at or above 1, with one decimal, e.g. "21.7 GB"
+     */
+    public static String format(long _bytes) {
+        double value = _bytes;
+        int unitIndex = 0;
+        while (Math.abs(value) >= 1024 && unitIndex < UNITS.length - 1) {
+            value /= 1024;
+            unitIndex++;
+        }
+        if (unitIndex == 0) {
+            return _bytes + " B";
+        }
+        return String.format(Locale.ROOT, "%.1f %s", value, UNITS[unitIndex]);
+    }
+}
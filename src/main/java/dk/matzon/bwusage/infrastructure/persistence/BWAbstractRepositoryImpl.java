@@ -1,33 +1,42 @@
 package dk.matzon.bwusage.infrastructure.persistence;
 
 import dk.matzon.bwusage.domain.Repository;
-import org.hibernate.HibernateException;
+import org.apache.commons.lang3.time.DateUtils;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.query.Query;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.List;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Created by Brian Matzon <brian@matzon.dk>
  */
 public abstract class BWAbstractRepositoryImpl<T> implements Repository<T> {
 
+    /**
+     * Must match hibernate.jdbc.batch_size in hibernate.cfg.xml
+     */
+    private static final int BATCH_SIZE = 50;
+
     private final SessionFactory sessionFactory;
     private final Class<T> clazz;
+    private final MonthlyPartitions<T> partitions;
 
     public BWAbstractRepositoryImpl(SessionFactory _sessionFactory, Class<T> _class) {
         sessionFactory = _sessionFactory;
         clazz = _class;
+        partitions = new MonthlyPartitions<>(_class);
     }
 
     public List<T> findAll() {
         List<T> result = withTransactionableSession((_session, _transaction) -> {
-            Query<T> query = _session.createQuery("from " + clazz.getName(), clazz);
-            List<T> list = query.list();
+            List<T> partitioned = partitions.find(_session, null, null);
+            Query<T> query = _session.createQuery("from " + clazz.getName() + " order by date", clazz);
+            List<T> list = combine(partitioned, query.list());
             _transaction.commit();
             return list;
         });
@@ -39,19 +48,27 @@ public abstract class BWAbstractRepositoryImpl<T> implements Repository<T> {
     }
 
     public List<T> findByDate(final Date _from, final Date _to) {
-        List<T> result = withTransactionableSession((_session, _transaction) -> {
-            Query<T> query = _session.createQuery("from " + clazz.getName() + " where date BETWEEN :fromDate AND :endDate", clazz);
+        List<T> result = find(_from, _to);
+        if (result == null) {
+            result = Collections.emptyList();
+        }
+        return result;
+    }
+
+    /**
+     * @return Ts between the supplied dates, or null if they could not be read
+     */
+    private List<T> find(final Date _from, final Date _to) {
+        return withTransactionableSession((_session, _transaction) -> {
+            List<T> partitioned = partitions.find(_session, _from, _to);
+            // ordered, scan hands them on as read
+            Query<T> query = _session.createQuery("from " + clazz.getName() + " where date BETWEEN :fromDate AND :endDate order by date", clazz);
             query.setParameter("fromDate", _from);
             query.setParameter("endDate", _to);
-            List<T> list = query.list();
+            List<T> list = combine(partitioned, query.list());
             _transaction.commit();
             return list;
         });
-
-        if (result == null) {
-            result = Collections.emptyList();
-        }
-        return result;
     }
 
     public T save(final T _entity) {
@@ -82,6 +99,119 @@ public abstract class BWAbstractRepositoryImpl<T> implements Repository<T> {
         });
     }
 
+    @Override
+    public int saveAllDistinct(final List<T> _entities) {
+        if (_entities.isEmpty()) {
+            return 0;
+        }
+
+        final PersistenceUnitUtil persistenceUnitUtil = sessionFactory.getPersistenceUnitUtil();
+        final SortedMap<Date, T> distinct = new TreeMap<>();
+        for (T entity : _entities) {
+            distinct.put((Date) persistenceUnitUtil.getIdentifier(entity), entity);
+        }
+
+        Integer result = withTransactionableSession((_session, _transaction) -> {
+            // load what is already stored for the range in one query per table, instead of a select per entity
+            Map<Object, T> sealed = new HashMap<>();
+            for (T entity : partitions.find(_session, distinct.firstKey(), distinct.lastKey())) {
+                sealed.put(persistenceUnitUtil.getIdentifier(entity), entity);
+            }
+            Query<T> query = _session.createQuery("from " + clazz.getName() + " where date BETWEEN :fromDate AND :endDate", clazz);
+            query.setParameter("fromDate", distinct.firstKey());
+            query.setParameter("endDate", distinct.lastKey());
+            Map<Object, T> existing = new HashMap<>();
+            for (T entity : query.list()) {
+                existing.put(persistenceUnitUtil.getIdentifier(entity), entity);
+            }
+
+            int count = 0;
+            for (Map.Entry<Date, T> entry : distinct.entrySet()) {
+                T stored = existing.get(entry.getKey());
+                if (stored != null && !entry.getValue().equals(stored)) {
+                    _session.merge(entry.getValue());
+                } else if (stored == null && !entry.getValue().equals(sealed.get(entry.getKey()))) {
+                    // new, or changed in a sealed month, in which case the hot row takes precedence until the next seal
+                    _session.persist(entry.getValue());
+                } else {
+                    continue;
+                }
+                if (++count % BATCH_SIZE == 0) {
+                    _session.flush();
+                }
+            }
+            _transaction.commit();
+            return count;
+        });
+        // rolled back
+        return result == null ? -1 : result;
+    }
+
+    @Override
+    public boolean scan(final Date _from, final Date _to, final Consumer<T> _consumer) {
+        Date[] range = withTransactionableSession((_session, _transaction) -> {
+            Date first = partitions.first(_session);
+            Date last = partitions.last(_session);
+            Date hotFirst = _session.createQuery("select min(date) from " + clazz.getName(), Date.class).uniqueResult();
+            Date hotLast = _session.createQuery("select max(date) from " + clazz.getName(), Date.class).uniqueResult();
+            _transaction.commit();
+            return new Date[]{
+                    first == null || (hotFirst != null && hotFirst.before(first)) ? hotFirst : first,
+                    last == null || (hotLast != null && hotLast.after(last)) ? hotLast : last};
+        });
+        if (range == null) {
+            return false;
+        }
+        if (range[0] == null) {
+            return true;
+        }
+
+        Date from = _from != null && _from.after(range[0]) ? _from : range[0];
+        Date to = _to != null && _to.before(range[1]) ? _to : range[1];
+        // a month at a time bounds memory, and keeps hot rows for sealed months in order
+        for (Date month = DateUtils.truncate(from, Calendar.MONTH); !month.after(to); month = DateUtils.addMonths(month, 1)) {
+            Date start = month.before(from) ? from : month;
+            Date endOfMonth = DateUtils.addMilliseconds(DateUtils.addMonths(month, 1), -1);
+            Date end = endOfMonth.after(to) ? to : endOfMonth;
+            List<T> entities = find(start, end);
+            if (entities == null) {
+                return false;
+            }
+            for (T entity : entities) {
+                _consumer.accept(entity);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int seal(final Date _before) {
+        Integer result = withTransactionableSession((_session, _transaction) -> {
+            int moved = partitions.seal(_session, _before);
+            _transaction.commit();
+            return moved;
+        });
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Combines partition and hot table results in date order, hot rows taking precedence
+     */
+    private List<T> combine(List<T> _partitioned, List<T> _hot) {
+        if (_partitioned.isEmpty()) {
+            return _hot;
+        }
+        PersistenceUnitUtil persistenceUnitUtil = sessionFactory.getPersistenceUnitUtil();
+        SortedMap<Date, T> combined = new TreeMap<>();
+        for (T entity : _partitioned) {
+            combined.put((Date) persistenceUnitUtil.getIdentifier(entity), entity);
+        }
+        for (T entity : _hot) {
+            combined.put((Date) persistenceUnitUtil.getIdentifier(entity), entity);
+        }
+        return new ArrayList<>(combined.values());
+    }
+
     private <S> S withTransactionableSession(TransactionableSession<S> _transactionableSession) {
         Session currentSession = null;
         Transaction tx = null;
@@ -90,8 +220,9 @@ public abstract class BWAbstractRepositoryImpl<T> implements Repository<T> {
             currentSession = sessionFactory.getCurrentSession();
             tx = currentSession.beginTransaction();
             result = _transactionableSession.execute(currentSession, tx);
-        } catch (HibernateException _he) {
-            if (tx != null) {
+        } catch (PersistenceException _he) {
+            // HibernateException, or a constraint or data error converted by the session on flush
+            if (tx != null && tx.isActive()) {
                 tx.rollback();
             }
         } finally {
@@ -0,0 +1,13 @@
+package dk.matzon.bwusage.infrastructure.persistence;
+
+import dk.matzon.bwusage.domain.model.BWSiteEntry;
+import org.hibernate.SessionFactory;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>
+ */
+public class BWSiteEntryRepositoryImpl extends BWAbstractRepositoryImpl<BWSiteEntry> {
+    public BWSiteEntryRepositoryImpl(SessionFactory _sessionFactory) {
+        super(_sessionFactory, BWSiteEntry.class);
+    }
+}
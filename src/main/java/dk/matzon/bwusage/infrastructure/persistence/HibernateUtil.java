@@ -10,6 +10,13 @@ import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.query.Query;
 
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
 /**
  * From generic Hibernate tutorial
  */
@@ -17,19 +24,61 @@ public class HibernateUtil {
 
     private static final Logger LOGGER = LogManager.getLogger(HibernateUtil.class);
 
+    private static final String FILE_PREFIX = "jdbc:hsqldb:file:";
+
+    private static String databasePath;
+
+    private static long startupReplayBytes;
+
+    private static long startupReplayTime;
+
     private static final SessionFactory SESSION_FACTORY = buildSessionFactory();
 
     private static SessionFactory buildSessionFactory() {
-        final StandardServiceRegistry registry = new StandardServiceRegistryBuilder()
-                .configure() // configures settings from hibernate.cfg.xml
-                .build();
+        StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder()
+                .configure(); // configures settings from hibernate.cfg.xml
+        Map<?, ?> settings = registryBuilder.getAggregatedCfgXml().getConfigurationValues();
+        // allow tests and tools to point at another database, e.g. jdbc:hsqldb:mem:test
+        String url = System.getProperty("bwusage.db.url");
+        if (url != null) {
+            registryBuilder.applySetting("hibernate.connection.url", url);
+        }
+        openDatabase(url != null ? url : settings.get("hibernate.connection.url"), settings);
+        final StandardServiceRegistry registry = registryBuilder.build();
         try {
             return new MetadataSources(registry).buildMetadata().buildSessionFactory();
         } catch (Exception e) {
             // The registry would be destroyed by the SessionFactory, but we had trouble building the SessionFactory
             // so destroy it manually.
             StandardServiceRegistryBuilder.destroy(registry);
-            throw new RuntimeException("Unable to configure hibernate");
+            throw new RuntimeException("Unable to configure hibernate", e);
+        }
+    }
+
+    /**
+     * Opens a file database ahead of hibernate, to measure how long HSQLDB takes to load its .script and replay its
+     * .log. The database stays open for hibernate's connections.
+     */
+    private static void openDatabase(Object _url, Map<?, ?> _settings) {
+        if (!(_url instanceof String) || !((String) _url).startsWith(FILE_PREFIX)) {
+            return;
+        }
+        String url = (String) _url;
+        String path = url.substring(FILE_PREFIX.length());
+        databasePath = path.contains(";") ? path.substring(0, path.indexOf(';')) : path;
+        startupReplayBytes = new File(databasePath + ".script").length() + new File(databasePath + ".log").length();
+        Object user = _settings.get("hibernate.connection.username");
+        Object password = _settings.get("hibernate.connection.password");
+        long start = System.currentTimeMillis();
+        try {
+            Connection connection = DriverManager.getConnection(url, user != null ? user.toString() : "SA", password != null ? password.toString() : "");
+            startupReplayTime = System.currentTimeMillis() - start;
+            // hibernate's connections keep the database open from here
+            connection.close();
+            LOGGER.info(String.format("Opened database in %d ms [script and log: %d bytes]", startupReplayTime, startupReplayBytes));
+        } catch (SQLException _e) {
+            // hibernate reports the actual problem when it connects
+            LOGGER.warn("Exception while opening database: " + _e.getMessage());
         }
     }
 
@@ -37,6 +86,27 @@ public class HibernateUtil {
         return SESSION_FACTORY;
     }
 
+    /**
+     * @return path of the file database, without extension, or null if the database is not file based
+     */
+    public static String getDatabasePath() {
+        return databasePath;
+    }
+
+    /**
+     * @return size of the .script and .log files when the database was opened
+     */
+    public static long getStartupReplayBytes() {
+        return startupReplayBytes;
+    }
+
+    /**
+     * @return time (ms) it took to open the database at startup
+     */
+    public static long getStartupReplayTime() {
+        return startupReplayTime;
+    }
+
     /**
      * HSQLDB centric backup of db
      */
@@ -54,4 +124,79 @@ public class HibernateUtil {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * HSQLDB centric checkpoint of db, writing the .script and truncating the .log. A defrag also rewrites the .data
+     * file without the space lost to deleted and moved rows.
+     *
+     * @return true if the checkpoint was performed
+     */
+    public static boolean checkpoint(boolean _defrag) {
+        Transaction transaction = null;
+        try (Session session = SESSION_FACTORY.getCurrentSession()) {
+            transaction = session.beginTransaction();
+            Query<?> checkpointQuery = session.createNativeQuery(_defrag ? "CHECKPOINT DEFRAG" : "CHECKPOINT");
+            checkpointQuery.executeUpdate();
+            transaction.commit();
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Exception while performing checkpoint: " + e.getMessage(), e);
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return bytes of the .data file lost to deleted and moved rows, reclaimable by a defrag
+     */
+    public static long getLostBytes() {
+        Transaction transaction = null;
+        try (Session session = SESSION_FACTORY.getCurrentSession()) {
+            transaction = session.beginTransaction();
+            @SuppressWarnings("unchecked")
+            List<Number> lost = session.createNativeQuery("SELECT FILE_LOST_BYTES FROM INFORMATION_SCHEMA.SYSTEM_CACHEINFO").list();
+            transaction.commit();
+            long result = 0;
+            for (Number bytes : lost) {
+                result += bytes != null ? bytes.longValue() : 0;
+            }
+            return result;
+        } catch (Exception e) {
+            LOGGER.warn("Exception while reading cache info: " + e.getMessage(), e);
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * HSQLDB centric bounded memory, capping the row cache and converting the remaining MEMORY tables (the hot tables
+     * created by hibernate) to CACHED, so no table is held in the heap in full. Only applies to file databases.
+     */
+    public static void boundMemory(int _cacheRows, int _cacheSizeKb) {
+        if (databasePath == null) {
+            return;
+        }
+        Transaction transaction = null;
+        try (Session session = SESSION_FACTORY.getCurrentSession()) {
+            transaction = session.beginTransaction();
+            session.createNativeQuery("SET FILES CACHE ROWS " + _cacheRows).executeUpdate();
+            session.createNativeQuery("SET FILES CACHE SIZE " + _cacheSizeKb).executeUpdate();
+            @SuppressWarnings("unchecked")
+            List<String> tables = session.createNativeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.SYSTEM_TABLES WHERE TABLE_SCHEM = 'PUBLIC' AND HSQLDB_TYPE = 'MEMORY'").list();
+            for (String table : tables) {
+                session.createNativeQuery("SET TABLE " + table + " TYPE CACHED").executeUpdate();
+                LOGGER.info("converted " + table + " to a cached table");
+            }
+            transaction.commit();
+        } catch (Exception e) {
+            LOGGER.warn("Exception while bounding database memory: " + e.getMessage(), e);
+            if (transaction != null && transaction.isActive()) {
+                transaction.rollback();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package dk.matzon.bwusage.infrastructure.persistence;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.NativeQuery;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * HSQLDB centric monthly partitioning of an entity table.
+ * <p>
+ * The entity table is the hot table, which Hibernate maps and writes to. Closed months are sealed by moving their rows
+ * into a CACHED table per month, named &lt;TABLE&gt;_P&lt;yyyyMM&gt;, which is then set read only. Reads prune to the
+ * partitions overlapping the requested range. Rows written for a sealed month land in the hot table, where they take
+ * precedence until the next seal merges them into the partition.
+ * <p>
+ * Sealing is not atomic, since HSQLDB commits on every DDL statement: a partition may be created, or left read write,
+ * by a seal which fails before its rows are moved. Instead sealing is idempotent and restartable. An existing partition
+ * is merged into rather than created, and hot rows are only deleted once the partition is verified to hold all of them,
+ * in the same transaction as the copy. Since hot rows take precedence, reads are correct at every step.
+ * <p>
+ * All partition tables share the entity table's columns, with the date as primary key. The known partitions are cached
+ * per database (SessionFactory) and table, shared by every instance for that table.
+ */
+class MonthlyPartitions<T> {
+
+    private static final Logger LOGGER = LogManager.getLogger(MonthlyPartitions.class);
+
+    /**
+     * known partitions per database and table, keyed by yyyyMM, a closed SessionFactory is dropped with its entry
+     */
+    private static final Map<SessionFactory, ConcurrentMap<String, NavigableMap<Integer, String>>> PARTITIONS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Class<T> clazz;
+    private final String table;
+    private List<String> columns;
+
+    MonthlyPartitions(Class<T> _class) {
+        clazz = _class;
+        table = _class.getSimpleName().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return detached Ts from the partitions overlapping the range, both ends inclusive, null for an open end
+     */
+    List<T> find(Session _session, Date _from, Date _to) {
+        NavigableMap<Integer, String> overlapping = partitions(_session);
+        if (_from != null) {
+            overlapping = overlapping.tailMap(key(_from), true);
+        }
+        if (_to != null) {
+            overlapping = overlapping.headMap(key(_to), true);
+        }
+
+        List<T> result = new ArrayList<>();
+        for (String partition : overlapping.values()) {
+            StringBuilder sql = new StringBuilder("SELECT * FROM ").append(partition);
+            if (_from != null && _to != null) {
+                sql.append(" WHERE date BETWEEN :fromDate AND :endDate");
+            } else if (_from != null) {
+                sql.append(" WHERE date >= :fromDate");
+            } else if (_to != null) {
+                sql.append(" WHERE date <= :endDate");
+            }
+            NativeQuery<T> query = _session.createNativeQuery(sql.toString(), clazz);
+            if (_from != null) {
+                query.setParameter("fromDate", _from);
+            }
+            if (_to != null) {
+                query.setParameter("endDate", _to);
+            }
+            for (T entity : query.list()) {
+                // partition rows are not mapped by hibernate, and must never be flushed to the hot table
+                _session.evict(entity);
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves all rows dated before _before from the hot table into their monthly partitions
+     *
+     * @return number of rows moved
+     */
+    int seal(Session _session, Date _before) {
+        NavigableMap<Integer, String> existing = partitions(_session);
+        List<String> tableColumns = columns(_session);
+
+        @SuppressWarnings("unchecked")
+        List<Number> months = _session.createNativeQuery("SELECT DISTINCT YEAR(date) * 100 + MONTH(date) FROM " + table + " WHERE date < :before")
+                .setParameter("before", _before)
+                .list();
+
+        int moved = 0;
+        for (Number month : months) {
+            int key = month.intValue();
+            String partition = table + "_P" + key;
+            Calendar calendar = Calendar.getInstance();
+            calendar.clear();
+            calendar.set(key / 100, key % 100 - 1, 1);
+            Date start = calendar.getTime();
+            Date end = DateUtils.addMonths(start, 1);
+
+            // a previous seal may have created the partition without completing, or another instance sealed it
+            if (existing.containsKey(key) || exists(_session, partition)) {
+                _session.createNativeQuery("SET TABLE " + partition + " READ WRITE").executeUpdate();
+            } else {
+                _session.createNativeQuery("CREATE CACHED TABLE " + partition + " (LIKE " + table + ", PRIMARY KEY (date))").executeUpdate();
+            }
+            existing.put(key, partition);
+
+            StringBuilder update = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            StringBuilder matches = new StringBuilder();
+            for (String column : tableColumns) {
+                if (!column.equalsIgnoreCase("date")) {
+                    update.append(update.length() > 0 ? ", " : "").append("p.").append(column).append(" = s.").append(column);
+                }
+                values.append(values.length() > 0 ? ", " : "").append("s.").append(column);
+                matches.append(matches.length() > 0 ? " AND " : "").append("p.").append(column).append(" IS NOT DISTINCT FROM s.").append(column);
+            }
+            int merged = _session.createNativeQuery("MERGE INTO " + partition + " p USING (SELECT * FROM " + table + " WHERE date >= :start AND date < :end) s ON (p.date = s.date)"
+                    + " WHEN MATCHED THEN UPDATE SET " + update
+                    + " WHEN NOT MATCHED THEN INSERT VALUES (" + values + ")")
+                    .setParameter("start", start)
+                    .setParameter("end", end)
+                    .executeUpdate();
+            Number missing = (Number) _session.createNativeQuery("SELECT COUNT(*) FROM " + table + " s WHERE date >= :start AND date < :end"
+                    + " AND NOT EXISTS (SELECT 1 FROM " + partition + " p WHERE " + matches + ")")
+                    .setParameter("start", start)
+                    .setParameter("end", end)
+                    .uniqueResult();
+            if (missing.intValue() > 0) {
+                // rolls back the copy, the hot rows stay until the next seal
+                throw new HibernateException(String.format("%d rows missing from %s after copy, not sealing", missing.intValue(), partition));
+            }
+            _session.createNativeQuery("DELETE FROM " + table + " WHERE date >= :start AND date < :end")
+                    .setParameter("start", start)
+                    .setParameter("end", end)
+                    .executeUpdate();
+            _session.createNativeQuery("SET TABLE " + partition + " READ ONLY").executeUpdate();
+            moved += merged;
+
+            LOGGER.info(String.format("sealed %s", partition));
+        }
+        return moved;
+    }
+
+    /**
+     * @return earliest date in the partitions, or null if there are none
+     */
+    Date first(Session _session) {
+        return boundary(_session, "MIN", partitions(_session).values());
+    }
+
+    /**
+     * @return latest date in the partitions, or null if there are none
+     */
+    Date last(Session _session) {
+        return boundary(_session, "MAX", partitions(_session).descendingMap().values());
+    }
+
+    /**
+     * @return boundary of the first non-empty partition, an interrupted seal can leave an empty one
+     */
+    private Date boundary(Session _session, String _function, Collection<String> _partitions) {
+        for (String partition : _partitions) {
+            Date boundary = boundary(_session, _function, partition);
+            if (boundary != null) {
+                return boundary;
+            }
+        }
+        return null;
+    }
+
+    private Date boundary(Session _session, String _function, String _partition) {
+        Object result = _session.createNativeQuery("SELECT " + _function + "(date) FROM " + _partition).uniqueResult();
+        return result != null ? new Date(((Date) result).getTime()) : null;
+    }
+
+    private NavigableMap<Integer, String> partitions(Session _session) {
+        ConcurrentMap<String, NavigableMap<Integer, String>> tables = PARTITIONS.computeIfAbsent(_session.getSessionFactory(), _sessionFactory -> new ConcurrentHashMap<>());
+        NavigableMap<Integer, String> partitions = tables.get(table);
+        if (partitions == null) {
+            NavigableMap<Integer, String> loaded = new ConcurrentSkipListMap<>();
+            @SuppressWarnings("unchecked")
+            List<String> names = _session.createNativeQuery("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME LIKE :prefix ESCAPE '\\'")
+                    .setParameter("prefix", table + "\\_P%")
+                    .list();
+            for (String name : names) {
+                loaded.put(Integer.parseInt(name.substring(table.length() + 2)), name);
+            }
+            partitions = tables.putIfAbsent(table, loaded);
+            if (partitions == null) {
+                partitions = loaded;
+            }
+        }
+        return partitions;
+    }
+
+    private boolean exists(Session _session, String _partition) {
+        Number count = (Number) _session.createNativeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = :name")
+                .setParameter("name", _partition)
+                .uniqueResult();
+        return count.intValue() > 0;
+    }
+
+    private List<String> columns(Session _session) {
+        if (columns == null) {
+            @SuppressWarnings("unchecked")
+            List<String> loaded = _session.createNativeQuery("SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC' AND TABLE_NAME = :table ORDER BY ORDINAL_POSITION")
+                    .setParameter("table", table)
+                    .list();
+            columns = loaded;
+        }
+        return columns;
+    }
+
+    private static int key(Date _date) {
+        Calendar calendar = DateUtils.toCalendar(_date);
+        return calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+    }
+}
@@ -0,0 +1,150 @@
+import dk.matzon.bwusage.application.service.DataGathererImpl;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class AsyncGatherTest {
+
+    private MockIspServer server;
+    private ScheduledExecutorService scheduledExecutorService;
+    private Repository<BWEntry> repository;
+    private Repository<BWHistoricalEntry> historicalRepository;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new MockIspServer(0, 0.0, 30, Collections.<String>emptyList());
+        server.start();
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduledExecutorService.shutdownNow();
+        server.stop();
+    }
+
+    private Properties properties(String _account) {
+        Properties properties = server.gathererProperties(_account);
+        properties.setProperty("datagatherer.dataperiod", "10");
+        properties.setProperty("datagatherer.maxerrorcount", "5");
+        properties.setProperty("datagatherer.datadelay", "0");
+        return properties;
+    }
+
+    @Test
+    void testHedgedRequestWins() {
+        Properties properties = properties("00:00:00:00:03:00");
+        properties.setProperty("datagatherer.hedge.delay", "100");
+        DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+        AtomicInteger gathers = new AtomicInteger();
+        dataGatherer.addListener((_now, _entries) -> gathers.incrementAndGet());
+
+        server.stall(1, 3000);
+        // timers don't wait for the shared scheduler, which may be busy writing reports
+        scheduledExecutorService.submit(() -> {
+            Thread.sleep(3000);
+            return null;
+        });
+        long start = System.currentTimeMillis();
+        dataGatherer.downloadData();
+        assertEquals(1, gathers.get());
+        assertEquals(2, server.getRequests());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    void testDeadline() {
+        Properties properties = properties("00:00:00:00:03:01");
+        properties.setProperty("datagatherer.deadline", "1");
+        DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+        AtomicInteger gathers = new AtomicInteger();
+        dataGatherer.addListener((_now, _entries) -> gathers.incrementAndGet());
+
+        server.stall(1, 3000);
+        long start = System.currentTimeMillis();
+        dataGatherer.downloadData();
+        assertEquals(0, gathers.get());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        // the next gather is unaffected
+        dataGatherer.downloadData();
+        assertEquals(1, gathers.get());
+    }
+
+    @Test
+    void testManualGatherReschedules() {
+        Properties properties = properties("00:00:00:00:03:03");
+        properties.setProperty("datagatherer.datadelay", "60");
+        DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+        dataGatherer.init();
+        try {
+            assertTrue(dataGatherer.getTimeForNextJob() > TimeUnit.MINUTES.toMillis(55));
+
+            // counters are moving, so the next gather follows at the min period instead of the initial delay
+            dataGatherer.downloadData();
+            long next = dataGatherer.getTimeForNextJob();
+            assertTrue(next > 0 && next <= TimeUnit.MINUTES.toMillis(5), "next gather in " + next + " ms");
+        } finally {
+            dataGatherer.shutdown();
+        }
+    }
+
+    @Test
+    void testSchedulerThreadIsFreed() throws Exception {
+        DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties("00:00:00:00:03:02"));
+        CountDownLatch gathered = new CountDownLatch(1);
+        dataGatherer.addListener((_now, _entries) -> gathered.countDown());
+
+        server.stall(1, 1000);
+        dataGatherer.init();
+        try {
+            // the only scheduler thread runs other work while the gather waits on the ISP
+            Thread.sleep(200);
+            Future<?> other = scheduledExecutorService.submit(() -> {
+            });
+            other.get(300, TimeUnit.MILLISECONDS);
+            assertEquals(1, gathered.getCount());
+            assertTrue(gathered.await(5, TimeUnit.SECONDS));
+        } finally {
+            dataGatherer.shutdown();
+        }
+    }
+
+    @Test
+    void testInvalidLoginUrlReschedules() throws Exception {
+        Properties properties = properties("00:00:00:00:03:04");
+        properties.setProperty("datagatherer.login", "not a url");
+        DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+        dataGatherer.init();
+        try {
+            // the failed scheduled gather is followed by the next one
+            Thread.sleep(500);
+            assertTrue(dataGatherer.isRunning());
+            assertTrue(dataGatherer.getTimeForNextJob() > 0);
+
+            assertDoesNotThrow(dataGatherer::downloadData);
+            assertTrue(dataGatherer.getTimeForNextJob() > 0);
+            assertEquals(0, server.getRequests());
+        } finally {
+            dataGatherer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import dk.matzon.bwusage.application.service.DailyTotalsIndex;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWTotal;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class DailyTotalsIndexTest {
+
+    private static Date day(int _year, int _month, int _day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day);
+        return calendar.getTime();
+    }
+
+    private static BWTotal scan(Repository<BWEntry> _repository, Date _from, Date _to) {
+        long upload = 0;
+        long download = 0;
+        for (BWEntry entry : _repository.findByDate(_from, _to)) {
+            upload += BWUnits.parse(entry.getUpload());
+            download += BWUnits.parse(entry.getDownload());
+        }
+        return new BWTotal(upload, download);
+    }
+
+    @Test
+    void testSumMatchesFullScan() {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Random random = new Random(42);
+        List<BWEntry> entries = new ArrayList<>();
+        for (Date date = day(2003, 1, 1); date.before(day(2004, 1, 1)); date = DateUtils.addDays(date, 1)) {
+            // leave some days without data
+            if (random.nextInt(10) > 0) {
+                entries.add(new BWEntry(date, random.nextInt(1000) + " MB", random.nextInt(50) + " GB"));
+            }
+        }
+        repository.saveAllDistinct(entries);
+
+        DailyTotalsIndex index = new DailyTotalsIndex(repository);
+        for (int i = 0; i < 100; i++) {
+            Date from = DateUtils.addDays(day(2002, 12, 1), random.nextInt(400));
+            Date to = DateUtils.addDays(from, random.nextInt(100));
+            assertEquals(scan(repository, from, to), index.sum(from, to));
+        }
+
+        // incremental updates, a changed day and a new day
+        List<BWEntry> updates = Arrays.asList(
+                new BWEntry(day(2003, 6, 1), "1 GB", "100 GB"),
+                new BWEntry(day(2002, 11, 1), "2 GB", "200 GB"));
+        repository.saveAllDistinct(updates);
+        index.onGather(new Date(), updates);
+        assertEquals(scan(repository, day(2003, 5, 1), day(2003, 7, 1)), index.sum(day(2003, 5, 1), day(2003, 7, 1)));
+        assertEquals(scan(repository, day(2002, 10, 1), day(2003, 12, 31)), index.sum(day(2002, 10, 1), day(2003, 12, 31)));
+    }
+
+    @Test
+    void testFailedRebuildIsDiscarded() {
+        final boolean[] failing = {true};
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()) {
+            @Override
+            public boolean scan(Date _from, Date _to, Consumer<BWEntry> _consumer) {
+                return super.scan(_from, _to, _entry -> {
+                    // an entry that can not be parsed, halfway through the scan
+                    if (failing[0] && _entry.getDate().getTime() == day(2011, 2, 1).getTime()) {
+                        BWUnits.parse("garbage");
+                    }
+                    _consumer.accept(_entry);
+                });
+            }
+        };
+        List<BWEntry> entries = new ArrayList<>();
+        for (Date date = day(2011, 1, 1); date.before(day(2011, 3, 1)); date = DateUtils.addDays(date, 1)) {
+            entries.add(new BWEntry(date, "1 GB", "10 GB"));
+        }
+        repository.saveAllDistinct(entries);
+
+        DailyTotalsIndex index = new DailyTotalsIndex(repository);
+        assertThrows(IllegalArgumentException.class, () -> index.sum(day(2011, 1, 1), day(2011, 2, 28)));
+
+        // the partial index must not be used, the next sum rebuilds it
+        failing[0] = false;
+        assertEquals(scan(repository, day(2011, 1, 1), day(2011, 2, 28)), index.sum(day(2011, 1, 1), day(2011, 2, 28)));
+    }
+}
@@ -0,0 +1,110 @@
+import dk.matzon.bwusage.application.service.DataImporterImpl;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWImportResult;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class DataImporterTest {
+
+    private static Date time(int _year, int _month, int _day, int _hour, int _minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day, _hour, _minute);
+        return calendar.getTime();
+    }
+
+    private static void write(Path _file, String... _lines) throws IOException {
+        Files.write(_file, Arrays.asList(_lines), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testImport(@TempDir Path _dir) throws Exception {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        write(_dir.resolve("a-usage.csv"),
+                "date,upload,download",
+                "# exported from the router",
+                "2007-01-01,1 GB,10 GB",
+                "2007-01-02,2 GB,20 GB",
+                "2007-01-02 06:00:00,0.5 GB,5 GB",
+                "2007-01-02 12:30,1 GB,12 GB",
+                "",
+                "2007-13-45,1 GB,10 GB",
+                "2007-01-03,lots,10 GB",
+                "2007-01-04,1 GB");
+        write(_dir.resolve("b-dump.json"), "{\"2007-01-02\":{\"down\":\"21 GB\",\"up\":\"2 GB\"},\"2007-01-05\":{\"down\":\"50 GB\",\"up\":\"5 GB\"}}");
+        write(_dir.resolve("c-broken.json"), "{\"2007-01-06\":{\"down\":\"1 GB\"");
+        DataImporterImpl importer = new DataImporterImpl(repository, historicalRepository, new Properties());
+
+        BWImportResult result = importer.importData(_dir.toFile());
+        assertEquals(3, result.getFiles());
+        assertEquals(6, result.getRows());
+        assertEquals(5, result.getSaved());
+        assertEquals(1, result.getSkippedFiles());
+        // header, invalid date, invalid usage and missing column
+        assertEquals(4, result.getRejectedRows());
+
+        List<BWEntry> entries = repository.findByDate(time(2007, 1, 1, 0, 0), time(2007, 1, 31, 0, 0));
+        assertEquals(Arrays.asList(
+                new BWEntry(time(2007, 1, 1, 0, 0), "1 GB", "10 GB"),
+                // the dump is imported after the CSV, so its value for the day wins
+                new BWEntry(time(2007, 1, 2, 0, 0), "2 GB", "21 GB"),
+                new BWEntry(time(2007, 1, 5, 0, 0), "5 GB", "50 GB")), entries);
+        assertEquals(Arrays.asList(
+                new BWHistoricalEntry(time(2007, 1, 2, 6, 0), "0.5 GB", "5 GB"),
+                new BWHistoricalEntry(time(2007, 1, 2, 12, 30), "1 GB", "12 GB")),
+                historicalRepository.findByDate(time(2007, 1, 1, 0, 0), time(2007, 1, 31, 0, 0)));
+
+        // rows already stored unchanged are not written again
+        result = importer.importData(_dir.toFile());
+        assertEquals(0, result.getSaved());
+        assertEquals(entries, repository.findByDate(time(2007, 1, 1, 0, 0), time(2007, 1, 31, 0, 0)));
+        assertEquals(2, historicalRepository.findByDate(time(2007, 1, 1, 0, 0), time(2007, 1, 31, 0, 0)).size());
+    }
+
+    @Test
+    void testNothingImportable(@TempDir Path _dir) throws Exception {
+        write(_dir.resolve("typo.csv"), "2007-02-01;1 GB 10 GB", "2007-02-02|1 GB|10 GB");
+        write(_dir.resolve("typo.json"), "[\"2007-02-03\"]");
+        Properties properties = new Properties();
+        for (String memory : Arrays.asList("standard", "bounded")) {
+            properties.setProperty("app.memory", memory);
+            DataImporterImpl importer = new DataImporterImpl(new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()),
+                    new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory()), properties);
+            IOException exception = assertThrows(IOException.class, () -> importer.importData(_dir.toFile()));
+            assertTrue(exception.getMessage().contains("skipped 1 files, rejected 2 rows"), exception.getMessage());
+        }
+    }
+
+    @Test
+    void testRolledBackImportFails(@TempDir Path _dir) throws Exception {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        // a valid size, but too long for the column, so the database rejects the batch
+        write(_dir.resolve("usage.csv"),
+                "2009-01-01,1 GB,10 GB",
+                "2009-01-02," + String.join("", Collections.nCopies(300, "0")) + "1 GB,10 GB");
+
+        assertThrows(IOException.class, () -> new DataImporterImpl(repository, historicalRepository, new Properties()).importData(_dir.toFile()));
+        Properties bounded = new Properties();
+        bounded.setProperty("app.memory", "bounded");
+        assertThrows(IOException.class, () -> new DataImporterImpl(repository, historicalRepository, bounded).importData(_dir.toFile()));
+        assertEquals(Collections.emptyList(), repository.findByDate(time(2009, 1, 1, 0, 0), time(2009, 1, 31, 0, 0)));
+    }
+}
@@ -0,0 +1,145 @@
+import dk.matzon.bwusage.application.service.DatabaseMaintenance;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class DatabaseMaintenanceTest {
+
+    /**
+     * Maintains a file database of its own, since the test database is in memory
+     */
+    private static class FileDatabaseMaintenance extends DatabaseMaintenance {
+        private final Connection connection;
+        private final String path;
+
+        FileDatabaseMaintenance(ScheduledExecutorService _scheduledExecutorService, Properties _properties, Connection _connection, String _path) {
+            super(_scheduledExecutorService, _properties);
+            connection = _connection;
+            path = _path;
+        }
+
+        @Override
+        protected String databasePath() {
+            return path;
+        }
+
+        @Override
+        protected long lostBytes() {
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT SUM(FILE_LOST_BYTES) FROM INFORMATION_SCHEMA.SYSTEM_CACHEINFO")) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            } catch (SQLException _e) {
+                throw new IllegalStateException(_e);
+            }
+        }
+
+        @Override
+        protected boolean checkpoint(boolean _defrag) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute(_defrag ? "CHECKPOINT DEFRAG" : "CHECKPOINT");
+                return true;
+            } catch (SQLException _e) {
+                throw new IllegalStateException(_e);
+            }
+        }
+    }
+
+    private static Properties properties(String _logMaxSize, String _defragMinSize, String _defragRatio) {
+        Properties properties = new Properties();
+        properties.setProperty("maintenance.log.maxsize", _logMaxSize);
+        properties.setProperty("maintenance.defrag.minsize", _defragMinSize);
+        properties.setProperty("maintenance.defrag.ratio", _defragRatio);
+        return properties;
+    }
+
+    private static void execute(Connection _connection, String _sql) throws SQLException {
+        try (Statement statement = _connection.createStatement()) {
+            statement.execute(_sql);
+        }
+    }
+
+    @Test
+    void testMaintenanceBranches(@TempDir Path _dir) throws Exception {
+        String path = new File(_dir.toFile(), "maintenance").getAbsolutePath();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try (Connection connection = DriverManager.getConnection("jdbc:hsqldb:file:" + path, "SA", "")) {
+            execute(connection, "SET FILES WRITE DELAY FALSE");
+            execute(connection, "CREATE CACHED TABLE USAGE (id INT PRIMARY KEY, payload VARCHAR(1000))");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO USAGE VALUES (?, ?)")) {
+                for (int i = 0; i < 2000; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, StringUtils.repeat('x', 500));
+                    insert.executeUpdate();
+                }
+            }
+            File log = new File(path + ".log");
+            assertTrue(log.length() > 100 * 1024);
+
+            // log over maxsize, lost space never checked
+            FileDatabaseMaintenance checkpointing = new FileDatabaseMaintenance(executor, properties("100 KB", "1 TB", "0.3"), connection, path);
+            checkpointing.maintain(false);
+            assertEquals(1, checkpointing.getCheckpoints());
+            assertEquals(0, checkpointing.getDefrags());
+            assertTrue(log.length() < 100 * 1024);
+
+            // log under maxsize and no lost space
+            checkpointing.maintain(false);
+            assertEquals(1, checkpointing.getCheckpoints());
+            assertEquals(0, checkpointing.getDefrags());
+
+            // lost space over the ratio, log under maxsize
+            execute(connection, "DELETE FROM USAGE WHERE MOD(id, 4) > 0");
+            FileDatabaseMaintenance defragmenting = new FileDatabaseMaintenance(executor, properties("1 TB", "1 B", "0.3"), connection, path);
+            long dataSize = new File(path + ".data").length();
+            defragmenting.maintain(false);
+            assertEquals(0, defragmenting.getCheckpoints());
+            assertEquals(1, defragmenting.getDefrags());
+            assertTrue(new File(path + ".data").length() < dataSize);
+
+            // nothing left to reclaim
+            defragmenting.maintain(false);
+            assertEquals(0, defragmenting.getCheckpoints());
+            assertEquals(1, defragmenting.getDefrags());
+
+            execute(connection, "SHUTDOWN");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testCheckpoint() {
+        HibernateUtil.getSessionFactory();
+        assertTrue(HibernateUtil.checkpoint(false));
+        assertTrue(HibernateUtil.checkpoint(true));
+        assertTrue(HibernateUtil.getLostBytes() >= 0);
+    }
+
+    @Test
+    void testNoMaintenanceForMemoryDatabase() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            DatabaseMaintenance maintenance = new DatabaseMaintenance(executor, new Properties());
+            assertNull(HibernateUtil.getDatabasePath());
+            maintenance.maintain(true);
+            assertEquals(0, maintenance.getTotalDuration());
+            assertEquals(0, maintenance.getSavedReplayTime());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
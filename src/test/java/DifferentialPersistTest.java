@@ -0,0 +1,77 @@
+import dk.matzon.bwusage.application.service.DataGathererImpl;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class DifferentialPersistTest {
+
+    @Test
+    void testOnlyChangedDaysArePersisted() throws Exception {
+        MockIspServer server = new MockIspServer(0, 0.0, 30, Collections.<String>emptyList());
+        server.start();
+        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final AtomicInteger saved = new AtomicInteger();
+            Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()) {
+                @Override
+                public boolean saveAll(List<BWEntry> _entities) {
+                    saved.addAndGet(_entities.size());
+                    return super.saveAll(_entities);
+                }
+            };
+            Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+            Properties properties = server.gathererProperties("00:00:00:00:01:00");
+            properties.setProperty("datagatherer.dataperiod", "10");
+            properties.setProperty("datagatherer.maxerrorcount", "5");
+
+            DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+            dataGatherer.downloadData();
+            assertTrue(saved.get() > 0 && saved.get() <= 30);
+
+            // only today's counters move
+            for (int i = 0; i < 3; i++) {
+                saved.set(0);
+                dataGatherer.downloadData();
+                assertEquals(1, saved.get());
+            }
+
+            // a restarted gatherer is seeded from the repository
+            saved.set(0);
+            new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties).downloadData();
+            assertEquals(1, saved.get());
+
+            // a day changed by an import is rewritten by the next gather once the gatherer is invalidated
+            Date yesterday = DateUtils.truncate(DateUtils.addDays(new Date(), -1), Calendar.DAY_OF_MONTH);
+            repository.saveAllDistinct(Collections.singletonList(new BWEntry(yesterday, "1 MB", "1 MB")));
+            dataGatherer.invalidate();
+            saved.set(0);
+            dataGatherer.downloadData();
+            assertEquals(2, saved.get());
+            assertNotEquals("1 MB", repository.findByDate(yesterday, yesterday).get(0).getUpload());
+        } finally {
+            scheduledExecutorService.shutdownNow();
+            server.stop();
+        }
+    }
+}
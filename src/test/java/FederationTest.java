@@ -0,0 +1,166 @@
+import dk.matzon.bwusage.application.service.AggregatorImpl;
+import dk.matzon.bwusage.application.service.BatchForwarder;
+import dk.matzon.bwusage.application.service.DailyTotalsIndex;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.domain.model.BWTotal;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWSiteEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class FederationTest {
+
+    private final List<BatchForwarder> forwarders = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (BatchForwarder forwarder : forwarders) {
+            forwarder.shutdown();
+        }
+    }
+
+    private static Date day(int _day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2002, Calendar.MARCH, _day);
+        return calendar.getTime();
+    }
+
+    private BatchForwarder forwarder(String _url, String _site, String _secret) {
+        Properties properties = new Properties();
+        properties.setProperty("federation.url", _url);
+        properties.setProperty("federation.site", _site);
+        properties.setProperty("federation.secret", _secret);
+        properties.setProperty("federation.batchsize", "2");
+        // the first backoff after a failure
+        properties.setProperty("federation.period", "1");
+        BatchForwarder forwarder = new BatchForwarder(properties);
+        forwarders.add(forwarder);
+        return forwarder;
+    }
+
+    private static AggregatorImpl aggregator(Repository<BWEntry> _repository) {
+        return aggregator(_repository, new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory()));
+    }
+
+    private static AggregatorImpl aggregator(Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository) {
+        Properties properties = new Properties();
+        properties.setProperty("federation.port", "0");
+        properties.setProperty("federation.secret", "secret");
+        return new AggregatorImpl(_repository, _historicalRepository, new BWSiteEntryRepositoryImpl(HibernateUtil.getSessionFactory()), properties);
+    }
+
+    @Test
+    void testSitesAreCombined() {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        AggregatorImpl aggregator = aggregator(repository);
+        DailyTotalsIndex totalsIndex = new DailyTotalsIndex(repository);
+        aggregator.addListener(totalsIndex);
+        aggregator.init();
+        try {
+            assertEquals(new BWTotal(0, 0), totalsIndex.sum(day(1), day(3)));
+
+            String url = "http://127.0.0.1:" + aggregator.getPort() + "/ingest";
+            BatchForwarder siteA = forwarder(url, "a", "secret");
+            BatchForwarder siteB = forwarder(url, "b", "secret");
+
+            siteA.onGather(new Date(), Arrays.asList(new BWEntry(day(1), "1 GB", "10 GB"), new BWEntry(day(2), "1 GB", "10 GB"), new BWEntry(day(3), "1 GB", "10 GB")));
+            // a newer sample for the same day supersedes the pending one
+            siteA.onGather(new Date(), Collections.singletonList(new BWEntry(day(3), "2 GB", "20 GB")));
+            siteB.onGather(new Date(), Arrays.asList(new BWEntry(day(2), "1 GB", "5 GB"), new BWEntry(day(3), "1 GB", "5 GB")));
+            assertEquals(3, siteA.getPending());
+
+            assertTrue(siteA.forward());
+            assertTrue(siteB.forward());
+            assertEquals(0, siteA.getPending());
+
+            List<BWEntry> combined = repository.findByDate(day(1), day(3));
+            assertEquals(3, combined.size());
+            assertEquals(BWUnits.parse("10 GB"), BWUnits.parse(combined.get(0).getDownload()));
+            assertEquals(BWUnits.parse("15 GB"), BWUnits.parse(combined.get(1).getDownload()));
+            assertEquals(BWUnits.parse("25 GB"), BWUnits.parse(combined.get(2).getDownload()));
+            assertEquals(BWUnits.parse("3 GB"), BWUnits.parse(combined.get(2).getUpload()));
+
+            // combined in bytes, 1.3 GB + 1.3 GB would otherwise be rounded to 2.5 GB
+            siteB.onGather(new Date(), Collections.singletonList(new BWEntry(day(1), "1.3 GB", "1.3 GB")));
+            siteA.onGather(new Date(), Collections.singletonList(new BWEntry(day(1), "1.3 GB", "1.3 GB")));
+            assertTrue(siteB.forward());
+            assertTrue(siteA.forward());
+            assertEquals(2 * BWUnits.parse("1.3 GB"), BWUnits.parse(repository.findByDate(day(1), day(1)).get(0).getDownload()));
+
+            // the listeners saw every ingest
+            assertEquals(new BWTotal(2 * BWUnits.parse("1.3 GB") + BWUnits.parse("5 GB"), 2 * BWUnits.parse("1.3 GB") + BWUnits.parse("40 GB")),
+                    totalsIndex.sum(day(1), day(3)));
+        } finally {
+            aggregator.shutdown();
+        }
+    }
+
+    @Test
+    void testUnavailableAggregatorKeepsBatch() {
+        try {
+            BatchForwarder site = forwarder("http://127.0.0.1:1/ingest", "c", "secret");
+            site.onGather(new Date(), Collections.singletonList(new BWEntry(day(4), "1 GB", "1 GB")));
+            assertFalse(site.forward());
+            assertEquals(1, site.getPending());
+        } finally {
+        }
+    }
+
+    @Test
+    void testWrongSecretKeepsBatch() {
+        AggregatorImpl aggregator = aggregator(new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()));
+        aggregator.init();
+        try {
+            BatchForwarder site = forwarder("http://127.0.0.1:" + aggregator.getPort() + "/ingest", "d", "wrong");
+            site.onGather(new Date(), Collections.singletonList(new BWEntry(day(5), "1 GB", "1 GB")));
+            assertFalse(site.forward());
+            assertEquals(1, site.getPending());
+        } finally {
+            aggregator.shutdown();
+        }
+    }
+
+    @Test
+    void testFailedIngestKeepsBatch() throws Exception {
+        // the site entries are stored, but the combined ones are not
+        final boolean[] failing = {true};
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()) {
+            @Override
+            public int saveAllDistinct(List<BWEntry> _entities) {
+                return failing[0] ? -1 : super.saveAllDistinct(_entities);
+            }
+        };
+        AggregatorImpl aggregator = aggregator(repository);
+        aggregator.init();
+        try {
+            BatchForwarder site = forwarder("http://127.0.0.1:" + aggregator.getPort() + "/ingest", "e", "secret");
+            site.onGather(new Date(), Collections.singletonList(new BWEntry(day(6), "1 GB", "1 GB")));
+            assertFalse(site.forward());
+            assertEquals(1, site.getPending());
+            assertEquals(Collections.emptyList(), repository.findByDate(day(6), day(6)));
+
+            // the batch id was released, so the retry is ingested rather than acknowledged as a duplicate
+            failing[0] = false;
+            Thread.sleep(1100);
+            assertTrue(site.forward());
+            assertEquals(1, repository.findByDate(day(6), day(6)).size());
+        } finally {
+            aggregator.shutdown();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import dk.matzon.bwusage.application.service.DataGathererImpl;
+import dk.matzon.bwusage.application.service.ReportGeneratorImpl;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * End-to-end load test of download, extract, persist and report against {@link MockIspServer}, reporting latency
+ * percentiles per stage and for the whole gather.
+ * <p>
+ * Runs as a short smoke test in the regular build; run main for a full load test, configured through system
+ * properties: loadtest.iterations, loadtest.latency (ms), loadtest.errorrate, loadtest.days, loadtest.accounts and
+ * loadtest.recordings (directory of recorded bandwidth responses to replay). Set bwusage.db.url to avoid writing to
+ * the default database.
+ */
+public class GatherLoadTest {
+
+    @Test
+    void testGatherPipeline() throws Exception {
+        Result result = run(25, 0, 0.0, 30, 2, Collections.<String>emptyList());
+        System.out.println(result);
+
+        assertEquals(25, result.gathers);
+        assertEquals(0, result.failed);
+        assertFalse(result.entries == 0);
+        assertEquals(result.gathers, result.historicalEntries);
+        for (long[] stage : result.stageLatencies) {
+            assertTrue(stage[stage.length - 1] > 0);
+        }
+    }
+
+    public static void main(String[] _args) throws Exception {
+        List<String> recorded = new ArrayList<>();
+        String recordings = System.getProperty("loadtest.recordings");
+        if (recordings != null) {
+            File[] files = new File(recordings).listFiles((_dir, _name) -> _name.endsWith(".json"));
+            for (File file : files != null ? files : new File[0]) {
+                recorded.add(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+        }
+        Result result = run(Integer.getInteger("loadtest.iterations", 1000),
+                Long.getLong("loadtest.latency", 0L),
+                Double.parseDouble(System.getProperty("loadtest.errorrate", "0.0")),
+                Integer.getInteger("loadtest.days", 30),
+                Integer.getInteger("loadtest.accounts", 1),
+                recorded);
+        System.out.println(result);
+        HibernateUtil.getSessionFactory().close();
+    }
+
+    private static Result run(int _iterations, long _latency, double _errorRate, int _days, int _accounts, List<String> _recorded) throws IOException {
+        MockIspServer server = new MockIspServer(_latency, _errorRate, _days, _recorded);
+        server.start();
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(1);
+        File reportDirectory = Files.createTempDirectory("bwusage-reports").toFile();
+        List<DataGathererImpl> gatherers = new ArrayList<>();
+        try {
+            Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+            Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+            int historicalBefore = historicalRepository.findAll().size();
+
+            // successful gathers, a failed gather leaves the stage times of the last successful one
+            final AtomicInteger successful = new AtomicInteger();
+            for (int i = 0; i < _accounts; i++) {
+                Properties properties = server.gathererProperties("00:00:00:00:00:" + i);
+                properties.setProperty("datagatherer.dataperiod", "10");
+                properties.setProperty("datagatherer.maxerrorcount", "5");
+                DataGathererImpl gatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, properties);
+                gatherer.addListener((_now, _entries) -> successful.incrementAndGet());
+                gatherers.add(gatherer);
+            }
+            Properties reportProperties = new Properties();
+            reportProperties.setProperty("reportgenerator.dir", reportDirectory.getPath());
+            reportProperties.setProperty("reportgenerator.maxerrorcount", "5");
+            ReportGeneratorImpl reportGenerator = new ReportGeneratorImpl(scheduledExecutorService, repository, historicalRepository, reportProperties);
+
+            long[] gatherLatencies = new long[_iterations];
+            long[][] stageLatencies = new long[3][_iterations];
+            int stageSamples = 0;
+            long[] reportLatencies = new long[_iterations];
+            long start = System.nanoTime();
+            for (int i = 0; i < _iterations; i++) {
+                DataGathererImpl gatherer = gatherers.get(i % _accounts);
+                int successfulBefore = successful.get();
+                long gatherStart = System.nanoTime();
+                gatherer.downloadData();
+                long reportStart = System.nanoTime();
+                reportGenerator.generateReports();
+                gatherLatencies[i] = reportStart - gatherStart;
+                reportLatencies[i] = System.nanoTime() - reportStart;
+                if (successful.get() > successfulBefore) {
+                    long[] stageTimes = gatherer.getStageTimes();
+                    for (int stage = 0; stage < stageTimes.length; stage++) {
+                        stageLatencies[stage][stageSamples] = stageTimes[stage];
+                    }
+                    stageSamples++;
+                }
+                // historical entries are keyed by time, keep samples apart
+                sleepUntilNextMillisecond(reportStart);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Result result = new Result();
+            result.gathers = _iterations;
+            result.failed = _iterations - stageSamples;
+            result.errors = server.getErrors();
+            result.elapsedNanos = elapsed;
+            result.gatherLatencies = gatherLatencies;
+            result.stageLatencies = new long[3][];
+            for (int stage = 0; stage < stageLatencies.length; stage++) {
+                result.stageLatencies[stage] = Arrays.copyOf(stageLatencies[stage], stageSamples);
+            }
+            result.reportLatencies = reportLatencies;
+            result.entries = repository.findAll().size();
+            result.historicalEntries = historicalRepository.findAll().size() - historicalBefore;
+            return result;
+        } finally {
+            for (DataGathererImpl gatherer : gatherers) {
+                gatherer.shutdown();
+            }
+            scheduledExecutorService.shutdownNow();
+            server.stop();
+            File[] reports = reportDirectory.listFiles();
+            for (File report : reports != null ? reports : new File[0]) {
+                report.delete();
+            }
+            reportDirectory.delete();
+        }
+    }
+
+    private static void sleepUntilNextMillisecond(long _nanos) {
+        while (System.nanoTime() - _nanos < 1000000L) {
+            Thread.yield();
+        }
+    }
+
+    private static class Result {
+        private int gathers;
+        private int failed;
+        private long errors;
+        private long elapsedNanos;
+        private long[] gatherLatencies;
+        /**
+         * download, extract and persist, of the successful gathers only
+         */
+        private long[][] stageLatencies;
+        private long[] reportLatencies;
+        private int entries;
+        private int historicalEntries;
+
+        private static String percentiles(long[] _latencies) {
+            if (_latencies.length == 0) {
+                return "no samples";
+            }
+            long[] sorted = _latencies.clone();
+            Arrays.sort(sorted);
+            return String.format("p50: %.2f ms, p90: %.2f ms, p99: %.2f ms, max: %.2f ms",
+                    percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static double percentile(long[] _sorted, double _percentile) {
+            int index = (int) Math.ceil(_percentile * _sorted.length) - 1;
+            return _sorted[Math.max(0, index)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d gathers (%d failed, %d injected errors) in %.2f s, %.1f gathers/sec%n  download: %s%n  extract: %s%n  persist: %s%n  gather: %s%n  report: %s%n  stored: %d entries, %d historical entries",
+                    gathers, failed, errors, elapsedNanos / 1e9, gathers / (elapsedNanos / 1e9),
+                    percentiles(stageLatencies[0]), percentiles(stageLatencies[1]), percentiles(stageLatencies[2]), percentiles(gatherLatencies),
+                    percentiles(reportLatencies), entries, historicalEntries);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import dk.matzon.bwusage.application.service.GatherSchedule;
+import org.junit.jupiter.api.Test;
+
+import java.util.Calendar;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class GatherScheduleTest {
+
+    private static Calendar at(int _hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.HOUR_OF_DAY, _hour);
+        return calendar;
+    }
+
+    @Test
+    void testAdaptivePeriod() {
+        GatherSchedule schedule = new GatherSchedule(5, 10, 40, 1, 6, 3, 100);
+
+        schedule.onSuccess(true, at(12));
+        assertEquals(5, schedule.getNextDelay());
+
+        schedule.onSuccess(false, at(12));
+        assertEquals(10, schedule.getNextDelay());
+        schedule.onSuccess(false, at(12));
+        assertEquals(20, schedule.getNextDelay());
+        schedule.onSuccess(false, at(12));
+        assertEquals(40, schedule.getNextDelay());
+        schedule.onSuccess(false, at(12));
+        assertEquals(40, schedule.getNextDelay());
+
+        schedule.onSuccess(true, at(3));
+        assertEquals(5, schedule.getNextDelay());
+        schedule.onSuccess(false, at(3));
+        assertEquals(40, schedule.getNextDelay());
+    }
+
+    @Test
+    void testCircuitBreaker() {
+        GatherSchedule schedule = new GatherSchedule(5, 10, 40, 1, 6, 3, 100);
+
+        schedule.onFailure();
+        assertEquals(5, schedule.getNextDelay());
+        schedule.onFailure();
+        assertEquals(10, schedule.getNextDelay());
+        assertEquals(GatherSchedule.STATE.CLOSED, schedule.getState());
+        schedule.onFailure();
+        assertEquals(100, schedule.getNextDelay());
+        assertEquals(GatherSchedule.STATE.OPEN, schedule.getState());
+
+        // failed trial re-opens the circuit
+        schedule.onAttempt();
+        assertEquals(GatherSchedule.STATE.HALF_OPEN, schedule.getState());
+        schedule.onFailure();
+        assertEquals(GatherSchedule.STATE.OPEN, schedule.getState());
+
+        // successful trial closes it
+        schedule.onAttempt();
+        schedule.onSuccess(true, at(12));
+        assertEquals(GatherSchedule.STATE.CLOSED, schedule.getState());
+        assertEquals(0, schedule.getErrorCount());
+    }
+}
@@ -0,0 +1,91 @@
+import dk.matzon.bwusage.application.service.ReportGeneratorImpl;
+import dk.matzon.bwusage.domain.ReportGenerator;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class GenerateReportsTest {
+
+    private static Date time(int _year, int _month, int _day, int _hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day, _hour, 0);
+        return calendar.getTime();
+    }
+
+    private static Map<String, String> reports(Path _dir) throws Exception {
+        Map<String, String> reports = new TreeMap<>();
+        for (File report : Objects.requireNonNull(_dir.toFile().listFiles())) {
+            reports.put(report.getName(), new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8));
+        }
+        return reports;
+    }
+
+    private static ReportGeneratorImpl generator(Repository<BWEntry> _repository, Repository<BWHistoricalEntry> _historicalRepository, Path _dir, final Date[] _now) {
+        Properties properties = new Properties();
+        properties.setProperty("reportgenerator.dir", _dir.toString());
+        properties.setProperty("reportgenerator.maxerrorcount", "5");
+        return new ReportGeneratorImpl(null, _repository, _historicalRepository, properties) {
+            @Override
+            protected Date now() {
+                return _now[0];
+            }
+        };
+    }
+
+    @Test
+    void testSingleScanMatchesPerTypeReports(@TempDir Path _single, @TempDir Path _perType) throws Exception {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        List<BWEntry> entries = new ArrayList<>();
+        List<BWHistoricalEntry> historicalEntries = new ArrayList<>();
+        for (Date day = time(2006, 2, 1, 0); day.before(time(2006, 4, 2, 0)); day = DateUtils.addDays(day, 1)) {
+            entries.add(new BWEntry(day, "1 GB", "10 GB"));
+            for (int hour = 0; hour < 24; hour += 3) {
+                historicalEntries.add(new BWHistoricalEntry(DateUtils.addHours(day, hour), hour + " MB", hour * 10 + " MB"));
+            }
+        }
+        repository.saveAllDistinct(entries);
+        historicalRepository.saveAllDistinct(historicalEntries);
+
+        Date[] now = {time(2006, 3, 31, 12)};
+        ReportGeneratorImpl single = generator(repository, historicalRepository, _single, now);
+        ReportGeneratorImpl perType = generator(repository, historicalRepository, _perType, now);
+        single.generateReports();
+        for (ReportGenerator.REPORT_TYPE reportType : ReportGenerator.REPORT_TYPE.values()) {
+            perType.generateReport(reportType);
+        }
+        assertEquals(Arrays.asList("2006-3-31.json", "2006-3.json", "all.json"), new ArrayList<>(reports(_single).keySet()));
+        assertEquals(reports(_perType), reports(_single));
+
+        // the ISP corrects the last day of march after the month rolled over, which only the rollover report picks up
+        repository.saveAllDistinct(Collections.singletonList(new BWEntry(time(2006, 3, 31, 0), "2 GB", "20 GB")));
+        now[0] = time(2006, 4, 1, 12);
+        single.generateReports();
+        for (ReportGenerator.REPORT_TYPE reportType : ReportGenerator.REPORT_TYPE.values()) {
+            perType.generateReport(reportType);
+        }
+        assertEquals(Arrays.asList("2006-3-31.json", "2006-3.json", "2006-4-1.json", "2006-4.json", "all.json"), new ArrayList<>(reports(_single).keySet()));
+        assertEquals(reports(_perType), reports(_single));
+        assertEquals(31, reports(_single).get("2006-3.json").split("\"date\"").length - 1);
+        assertTrue(reports(_single).get("2006-3.json").contains("20 GB"));
+    }
+}
@@ -0,0 +1,210 @@
+import dk.matzon.bwusage.application.service.*;
+import dk.matzon.bwusage.domain.ReportGenerator;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Heap budget test of the bounded memory mode (app.memory=bounded).
+ * <p>
+ * Forks a JVM with a small heap (heapbudget.xmx), which imports heapbudget.years of synthetic history (a snapshot
+ * every heapbudget.interval minutes) into a file database and runs the full pipeline: seal, gathers with all
+ * listeners, reports, every listing and maintenance. Fails if the JVM runs out of memory, or if it spends more than
+ * heapbudget.gcmax ms or heapbudget.gcratio of its time in GC. Run with the heap-budget profile.
+ */
+@Tag("heapbudget")
+public class HeapBudgetTest {
+
+    @Test
+    void testPipelineWithinHeapBudget() throws Exception {
+        File directory = Files.createTempDirectory("bwusage-heapbudget").toFile();
+        File output = new File(directory, "output.txt");
+        try {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-Xmx" + System.getProperty("heapbudget.xmx", "48m"));
+            command.add("-XX:+ExitOnOutOfMemoryError");
+            if (!System.getProperty("java.specification.version").startsWith("1.")) {
+                command.add("--add-opens");
+                command.add("java.base/java.lang=ALL-UNNAMED");
+            }
+            command.add("-Dbwusage.db.url=jdbc:hsqldb:file:" + new File(directory, "db/bwusage.db").getPath());
+            command.add("-Dheapbudget.dir=" + directory.getPath());
+            for (String property : Arrays.asList("heapbudget.years", "heapbudget.interval")) {
+                if (System.getProperty(property) != null) {
+                    command.add("-D" + property + "=" + System.getProperty(property));
+                }
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(HeapBudgetTest.class.getName());
+
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start();
+            assertTrue(process.waitFor(30, TimeUnit.MINUTES), "pipeline timed out");
+
+            List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+            Map<String, Long> result = new HashMap<>();
+            for (String line : lines) {
+                if (line.startsWith("heapbudget:")) {
+                    System.out.println(line);
+                    String[] tokens = line.substring("heapbudget:".length()).trim().split("=");
+                    result.put(tokens[0], Long.parseLong(tokens[1]));
+                }
+            }
+            if (process.exitValue() != 0) {
+                lines.subList(Math.max(0, lines.size() - 20), lines.size()).forEach(System.out::println);
+            }
+            assertEquals(0, process.exitValue(), "pipeline failed, possibly out of memory");
+
+            long gcTime = result.get("gc.time");
+            long elapsed = result.get("elapsed");
+            assertTrue(gcTime <= Long.getLong("heapbudget.gcmax", 5000L), "GC time regression: " + gcTime + " ms");
+            assertTrue(gcTime <= elapsed * Double.parseDouble(System.getProperty("heapbudget.gcratio", "0.1")), "GC time regression: " + gcTime + " ms of " + elapsed + " ms");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * The pipeline, run in the forked JVM
+     */
+    public static void main(String[] _args) throws Exception {
+        long start = System.currentTimeMillis();
+        File directory = new File(System.getProperty("heapbudget.dir"));
+        int years = Integer.getInteger("heapbudget.years", 10);
+        int interval = Integer.getInteger("heapbudget.interval", 15);
+
+        Properties properties = new Properties();
+        properties.setProperty("app.memory", "bounded");
+        properties.setProperty("reportgenerator.dir", new File(directory, "reports").getPath());
+        properties.setProperty("reportgenerator.maxerrorcount", "5");
+        properties.setProperty("quota.limit", "1000 GB");
+        new File(directory, "reports").mkdirs();
+
+        HibernateUtil.boundMemory(10000, 4096);
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+
+        // import and seal everything but the current month
+        Date now = new Date();
+        Date startOfMonth = DateUtils.truncate(now, Calendar.MONTH);
+        File history = synthesize(new File(directory, "history.csv"), DateUtils.addYears(startOfMonth, -years), startOfMonth, interval);
+        new DataImporterImpl(repository, historicalRepository, properties).importData(history);
+        history.delete();
+        repository.seal(startOfMonth);
+        historicalRepository.seal(startOfMonth);
+        report("import", start);
+
+        ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(2);
+        MockIspServer server = new MockIspServer(0, 0.0, 30, Collections.<String>emptyList());
+        server.start();
+        try {
+            Properties gathererProperties = server.gathererProperties("00:00:00:00:02:00");
+            gathererProperties.setProperty("datagatherer.dataperiod", "10");
+            gathererProperties.setProperty("datagatherer.maxerrorcount", "5");
+            DataGathererImpl dataGatherer = new DataGathererImpl(scheduledExecutorService, repository, historicalRepository, gathererProperties);
+
+            QuotaTracker quotaTracker = new QuotaTracker(repository, properties);
+            quotaTracker.init();
+            dataGatherer.addListener(quotaTracker);
+            DailyTotalsIndex totalsIndex = new DailyTotalsIndex(repository);
+            dataGatherer.addListener(totalsIndex);
+            PeakAnalytics peakAnalytics = new PeakAnalytics(historicalRepository, properties);
+            peakAnalytics.init();
+            dataGatherer.addListener(peakAnalytics);
+            DatabaseMaintenance databaseMaintenance = new DatabaseMaintenance(scheduledExecutorService, properties);
+            report("listeners", start);
+
+            ReportGeneratorImpl reportGenerator = new ReportGeneratorImpl(scheduledExecutorService, repository, historicalRepository, properties, totalsIndex);
+            for (int i = 0; i < 20; i++) {
+                dataGatherer.downloadData();
+                reportGenerator.generateReports();
+            }
+            report("gather", start);
+
+            // console commands
+            for (ReportGenerator.REPORT_TYPE reportType : ReportGenerator.REPORT_TYPE.values()) {
+                reportGenerator.generateReport(reportType);
+                reportGenerator.list(reportType);
+            }
+            System.out.println(reportGenerator.sum(DateUtils.addYears(now, -years), now));
+            quotaTracker.printStatus();
+            databaseMaintenance.maintain(true);
+            databaseMaintenance.printStatus();
+            report("commands", start);
+        } finally {
+            server.stop();
+            scheduledExecutorService.shutdownNow();
+        }
+
+        long gcTime = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, bean.getCollectionTime());
+            gcCount += Math.max(0, bean.getCollectionCount());
+        }
+        System.out.println("heapbudget: gc.time=" + gcTime);
+        System.out.println("heapbudget: gc.count=" + gcCount);
+        System.out.println("heapbudget: heap.max=" + Runtime.getRuntime().maxMemory());
+        System.out.println("heapbudget: elapsed=" + (System.currentTimeMillis() - start));
+        HibernateUtil.getSessionFactory().close();
+        System.exit(0);
+    }
+
+    /**
+     * Writes daily entries and historical snapshots (usage so far of the day, every _interval minutes) as CSV
+     */
+    private static File synthesize(File _file, Date _from, Date _to, int _interval) throws IOException {
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        Random random = new Random(42);
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file), StandardCharsets.UTF_8)))) {
+            for (Date date = _from; date.before(_to); date = DateUtils.addDays(date, 1)) {
+                long upload = 0;
+                long download = 0;
+                Date end = DateUtils.addDays(date, 1);
+                for (Date sample = date; sample.before(end); sample = DateUtils.addMinutes(sample, _interval)) {
+                    upload += random.nextInt(20);
+                    download += random.nextInt(200);
+                    writer.println(time.format(sample) + "," + upload + " MB," + download + " MB");
+                }
+                writer.println(day.format(date) + "," + upload + " MB," + download + " MB");
+            }
+        }
+        return _file;
+    }
+
+    private static void report(String _phase, long _start) {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println(String.format("heapbudget: %s.ms=%d", _phase, System.currentTimeMillis() - _start));
+        System.out.println(String.format("heapbudget: %s.used=%d", _phase, runtime.totalMemory() - runtime.freeMemory()));
+    }
+
+    private static void delete(File _file) {
+        File[] children = _file.listFiles();
+        for (File child : children != null ? children : new File[0]) {
+            delete(child);
+        }
+        _file.delete();
+    }
+}
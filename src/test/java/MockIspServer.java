@@ -0,0 +1,183 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the ISP login and bandwidth endpoints.
+ * <p>
+ * POST /login returns a token, POST /bandwidth requires it as bearer and returns a rolling window of days in the ISP
+ * format. Each account (mac) has its own counters, and today's counters increase on every request. Alternatively a
+ * list of recorded responses is replayed round-robin. Latency and error rate are configurable, and bandwidth requests
+ * can be stalled to simulate a slow ISP.
+ */
+public class MockIspServer {
+
+    private static final String TOKEN = "mock.jwt.token";
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final long latency;
+    private final double errorRate;
+    private final int days;
+    private final List<String> recorded;
+
+    private final Map<String, AtomicLong> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger stalls = new AtomicInteger();
+    private volatile long stallTime;
+
+    /**
+     * @param _latency   latency (ms) added to every response
+     * @param _errorRate fraction [0-1] of bandwidth requests answered with a 500
+     * @param _days      days in the rolling window of synthetic responses
+     * @param _recorded  recorded responses to replay instead of synthetic ones, may be empty
+     */
+    public MockIspServer(long _latency, double _errorRate, int _days, List<String> _recorded) throws IOException {
+        latency = _latency;
+        errorRate = _errorRate;
+        days = _days;
+        recorded = _recorded;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executorService = Executors.newCachedThreadPool();
+        server.setExecutor(executorService);
+        server.createContext("/login", this::login);
+        server.createContext("/bandwidth", this::bandwidth);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executorService.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return datagatherer.* properties pointing at this server
+     */
+    public Properties gathererProperties(String _account) {
+        Properties properties = new Properties();
+        properties.setProperty("datagatherer.login", getBaseUrl() + "/login");
+        properties.setProperty("datagatherer.bwpage", getBaseUrl() + "/bandwidth");
+        properties.setProperty("datagatherer.username", "user");
+        properties.setProperty("datagatherer.password", "password");
+        properties.setProperty("datagatherer.mac", _account);
+        properties.setProperty("datagatherer.buid", "1");
+        properties.setProperty("datagatherer.case", "1");
+        return properties;
+    }
+
+    /**
+     * Stalls the next _requests bandwidth requests for _millis ms each
+     */
+    public void stall(int _requests, long _millis) {
+        stallTime = _millis;
+        stalls.set(_requests);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private void login(HttpExchange _exchange) throws IOException {
+        delay();
+        JsonObject response = new JsonObject();
+        response.addProperty("token", TOKEN);
+        respond(_exchange, 200, response.toString());
+    }
+
+    private void bandwidth(HttpExchange _exchange) throws IOException {
+        long request = requests.incrementAndGet();
+        delay();
+        if (stalls.getAndUpdate(_stalls -> Math.max(0, _stalls - 1)) > 0) {
+            sleep(stallTime);
+        }
+        if (!("Bearer " + TOKEN).equals(_exchange.getRequestHeaders().getFirst("authorization"))) {
+            respond(_exchange, 401, "{}");
+            return;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            respond(_exchange, 500, "{}");
+            return;
+        }
+        if (!recorded.isEmpty()) {
+            respond(_exchange, 200, recorded.get((int) ((request - 1) % recorded.size())));
+            return;
+        }
+
+        JsonElement body = new JsonParser().parse(new InputStreamReader(_exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String account = body.getAsJsonObject().get("mac").getAsString();
+        long counter = accounts.computeIfAbsent(account, _key -> new AtomicLong()).incrementAndGet();
+        respond(_exchange, 200, window(account.hashCode(), counter));
+    }
+
+    private String window(int _seed, long _counter) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        Calendar calendar = Calendar.getInstance();
+        JsonObject response = new JsonObject();
+        for (int day = 0; day < days; day++) {
+            JsonObject usage = new JsonObject();
+            if (day == 0) {
+                usage.addProperty("down", _counter * 10 + " MB");
+                usage.addProperty("up", _counter + " MB");
+            } else {
+                Random random = new Random(_seed + calendar.getTimeInMillis() / 86400000L);
+                usage.addProperty("down", random.nextInt(50) + "." + random.nextInt(10) + " GB");
+                usage.addProperty("up", random.nextInt(999) + " MB");
+            }
+            response.add(sdf.format(calendar.getTime()), usage);
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return response.toString();
+    }
+
+    private void delay() {
+        if (latency > 0) {
+            sleep(latency);
+        }
+    }
+
+    private static void sleep(long _millis) {
+        try {
+            Thread.sleep(_millis);
+        } catch (InterruptedException _e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(HttpExchange _exchange, int _status, String _body) throws IOException {
+        byte[] bytes = _body.getBytes(StandardCharsets.UTF_8);
+        _exchange.getResponseHeaders().add("Content-Type", "application/json");
+        _exchange.sendResponseHeaders(_status, bytes.length);
+        try (OutputStream outputStream = _exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
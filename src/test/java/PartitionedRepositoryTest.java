@@ -0,0 +1,130 @@
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class PartitionedRepositoryTest {
+
+    private static Date day(int _year, int _month, int _day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day);
+        return calendar.getTime();
+    }
+
+    @Test
+    void testSealAndPrune() {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+
+        // three months of data, far away from anything else in the test database
+        List<BWEntry> entries = new ArrayList<>();
+        for (Date date = day(2001, 1, 1); date.before(day(2001, 4, 1)); date = new Date(date.getTime() + 86400000L)) {
+            entries.add(new BWEntry(date, "1 MB", "10 MB"));
+        }
+        assertEquals(entries.size(), repository.saveAllDistinct(entries));
+
+        List<BWEntry> before = repository.findByDate(day(2001, 1, 20), day(2001, 3, 10));
+        assertEquals(50, before.size());
+
+        assertEquals(59, repository.seal(day(2001, 3, 1)));
+        assertEquals(before, repository.findByDate(day(2001, 1, 20), day(2001, 3, 10)));
+        assertEquals(entries.size(), repository.findByDate(day(2001, 1, 1), day(2001, 3, 31)).size());
+
+        // unchanged rows in sealed months are skipped, changed rows take precedence until sealed again
+        assertEquals(0, repository.saveAllDistinct(entries.subList(0, 31)));
+        BWEntry changed = new BWEntry(day(2001, 1, 15), "2 MB", "20 MB");
+        assertEquals(1, repository.saveAllDistinct(Collections.singletonList(changed)));
+        assertEquals(Collections.singletonList(changed), repository.findByDate(day(2001, 1, 15), day(2001, 1, 15)));
+
+        assertEquals(1, repository.seal(day(2001, 3, 1)));
+        assertEquals(Collections.singletonList(changed), repository.findByDate(day(2001, 1, 15), day(2001, 1, 15)));
+        assertEquals(50, repository.findByDate(day(2001, 1, 20), day(2001, 3, 10)).size());
+    }
+
+    @Test
+    void testResumeInterruptedSeal() {
+        List<BWEntry> entries = new ArrayList<>();
+        for (Date date = day(2008, 1, 1); date.before(day(2008, 3, 1)); date = new Date(date.getTime() + 86400000L)) {
+            entries.add(new BWEntry(date, "1 MB", "10 MB"));
+        }
+        assertEquals(entries.size(), new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()).saveAllDistinct(entries));
+
+        // a seal which stopped after creating the partition, and copying part of the month
+        try (Session session = HibernateUtil.getSessionFactory().openSession()) {
+            session.beginTransaction();
+            session.createNativeQuery("CREATE CACHED TABLE BWENTRY_P200801 (LIKE BWENTRY, PRIMARY KEY (date))").executeUpdate();
+            session.createNativeQuery("INSERT INTO BWENTRY_P200801 SELECT * FROM BWENTRY WHERE date >= :start AND date < :end")
+                    .setParameter("start", day(2008, 1, 1))
+                    .setParameter("end", day(2008, 1, 11))
+                    .executeUpdate();
+            session.getTransaction().commit();
+        }
+
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        // earlier months of other tests may be sealed along
+        assertTrue(repository.seal(day(2008, 2, 1)) >= 31);
+        assertEquals(entries.size(), repository.findByDate(day(2008, 1, 1), day(2008, 2, 29)).size());
+
+        // a second instance sees the partition sealed by the first
+        Repository<BWEntry> other = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        assertEquals(29, other.seal(day(2008, 3, 1)));
+        assertEquals(0, repository.seal(day(2008, 3, 1)));
+        assertEquals(entries, repository.findByDate(day(2008, 1, 1), day(2008, 2, 29)));
+    }
+
+    @Test
+    void testPartitionsArePerDatabase() {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        List<BWEntry> entries = Arrays.asList(new BWEntry(day(2010, 1, 1), "1 MB", "10 MB"), new BWEntry(day(2010, 1, 2), "1 MB", "10 MB"));
+        repository.saveAllDistinct(entries);
+        assertTrue(repository.seal(day(2010, 2, 1)) >= 2);
+
+        // another database in the same JVM has none of these partitions
+        SessionFactory other = new MetadataSources(new StandardServiceRegistryBuilder().configure()
+                .applySetting("hibernate.connection.url", "jdbc:hsqldb:mem:bwusage-other")
+                .build()).buildMetadata().buildSessionFactory();
+        try {
+            Repository<BWEntry> otherRepository = new BWEntryRepositoryImpl(other);
+            assertEquals(2, otherRepository.saveAllDistinct(entries));
+            assertEquals(entries, otherRepository.findByDate(day(2010, 1, 1), day(2010, 1, 31)));
+            assertEquals(2, otherRepository.seal(day(2010, 2, 1)));
+            assertEquals(entries, otherRepository.findByDate(day(2010, 1, 1), day(2010, 1, 31)));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    void testScanIsInDateOrder() {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        // stored in random order, one row at a time
+        List<Date> dates = new ArrayList<>();
+        for (Date date = day(2012, 1, 1); date.before(day(2012, 3, 1)); date = new Date(date.getTime() + 86400000L)) {
+            dates.add(date);
+        }
+        Collections.shuffle(dates, new Random(42));
+        for (Date date : dates) {
+            assertEquals(1, repository.saveAllDistinct(Collections.singletonList(new BWEntry(date, "1 MB", "10 MB"))));
+        }
+
+        List<Long> scanned = new ArrayList<>();
+        assertTrue(repository.scan(day(2012, 1, 1), day(2012, 2, 29), _entry -> scanned.add(_entry.getDate().getTime())));
+        List<Long> sorted = new ArrayList<>(scanned);
+        Collections.sort(sorted);
+        assertEquals(dates.size(), scanned.size());
+        assertEquals(sorted, scanned);
+    }
+}
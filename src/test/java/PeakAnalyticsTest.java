@@ -0,0 +1,78 @@
+import dk.matzon.bwusage.application.service.PeakAnalytics;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class PeakAnalyticsTest {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private static Date time(int _year, int _month, int _day, int _hour, int _minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day, _hour, _minute);
+        return calendar.getTime();
+    }
+
+    @Test
+    void testHeatmapAndPeaks(@TempDir Path _dir) {
+        Properties properties = new Properties();
+        properties.setProperty("reportgenerator.dir", _dir.toString());
+        properties.setProperty("analytics.peaks", "2");
+        PeakAnalytics analytics = new PeakAnalytics(null, properties);
+
+        // 2004-03-01 is a monday
+        Date day = time(2004, 3, 1, 0, 0);
+        analytics.onGather(time(2004, 3, 1, 0, 30), Collections.singletonList(new BWEntry(day, "0 GB", "1 GB")));
+        analytics.onGather(time(2004, 3, 1, 2, 0), Collections.singletonList(new BWEntry(day, "0 GB", "2.5 GB")));
+        analytics.onGather(time(2004, 3, 1, 2, 30), Collections.singletonList(new BWEntry(day, "1 GB", "4.5 GB")));
+        // out of order and corrected samples are not usage
+        analytics.onGather(time(2004, 3, 1, 1, 0), Collections.singletonList(new BWEntry(day, "0 GB", "9 GB")));
+        analytics.onGather(time(2004, 3, 1, 3, 0), Collections.singletonList(new BWEntry(day, "1 GB", "4 GB")));
+
+        long[][] heatmap = analytics.getHeatmap();
+        assertEquals(GB + GB / 2, heatmap[0][0]);
+        assertEquals(GB, heatmap[0][1]);
+        assertEquals(3 * GB, heatmap[0][2]);
+        assertEquals(0, heatmap[0][3]);
+
+        List<PeakAnalytics.Peak> peaks = analytics.getPeaks().get("2004-3");
+        assertEquals(2, peaks.size());
+        assertEquals(time(2004, 3, 1, 2, 0), peaks.get(0).getStart());
+        assertEquals(3 * GB, peaks.get(0).getBytes());
+        assertEquals(time(2004, 3, 1, 0, 0), peaks.get(1).getStart());
+        assertTrue(new File(_dir.toFile(), "peaks.json").exists());
+    }
+
+    @Test
+    void testScanIsOrdered() {
+        Repository<BWHistoricalEntry> repository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        List<BWHistoricalEntry> entries = new ArrayList<>();
+        for (Date date = time(2004, 5, 1, 0, 0); date.before(time(2004, 8, 1, 0, 0)); date = DateUtils.addHours(date, 7)) {
+            entries.add(new BWHistoricalEntry(date, "1 GB", "1 GB"));
+        }
+        Collections.shuffle(entries, new Random(42));
+        repository.saveAllDistinct(entries);
+
+        List<Date> scanned = new ArrayList<>();
+        repository.scan(time(2004, 5, 1, 0, 0), time(2004, 7, 31, 23, 59), _entry -> scanned.add(_entry.getDate()));
+        assertEquals(entries.size(), scanned.size());
+        for (int i = 1; i < scanned.size(); i++) {
+            assertTrue(scanned.get(i - 1).getTime() < scanned.get(i).getTime());
+        }
+    }
+}
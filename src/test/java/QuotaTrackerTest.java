@@ -0,0 +1,77 @@
+import dk.matzon.bwusage.application.service.QuotaTracker;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWUnits;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class QuotaTrackerTest {
+
+    private static class RecordingQuotaTracker extends QuotaTracker {
+        private final List<String> alerts = new ArrayList<>();
+
+        RecordingQuotaTracker(Properties _properties) {
+            super(null, _properties);
+        }
+
+        @Override
+        protected void alert(String _type, String _message) {
+            alerts.add(_type);
+        }
+    }
+
+    private static Date day(int _year, int _month, int _day, int _hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day, _hour, 0);
+        return calendar.getTime();
+    }
+
+    @Test
+    void testUnits() {
+        assertEquals(730L * 1024 * 1024, BWUnits.parse("730 MB"));
+        assertEquals(Math.round(21.7 * 1024 * 1024 * 1024), BWUnits.parse("21.7 GB"));
+        assertEquals(512, BWUnits.parse("512"));
+        assertEquals("21.7 GB", BWUnits.format(BWUnits.parse("21.7 GB")));
+        assertEquals("730.0 MB", BWUnits.format(BWUnits.parse("730 MB")));
+    }
+
+    @Test
+    void testRunningTotalsAndAlerts() {
+        Properties properties = new Properties();
+        properties.setProperty("quota.limit", "100 GB");
+        properties.setProperty("quota.thresholds", "50,100");
+        properties.setProperty("quota.daily.limit", "30 GB");
+        properties.setProperty("quota.direction", "download");
+        RecordingQuotaTracker tracker = new RecordingQuotaTracker(properties);
+
+        // rolling window, including the last days of the previous month
+        tracker.onGather(day(2019, 6, 1, 12), Arrays.asList(
+                new BWEntry(day(2019, 6, 1, 0), "1 GB", "10 GB"),
+                new BWEntry(day(2019, 5, 31, 0), "1 GB", "40 GB")));
+        assertEquals(BWUnits.parse("10 GB"), tracker.getMonthTotal());
+
+        // same day updated, only the difference counts
+        tracker.onGather(day(2019, 6, 1, 18), Collections.singletonList(new BWEntry(day(2019, 6, 1, 0), "1 GB", "20 GB")));
+        assertEquals(BWUnits.parse("20 GB"), tracker.getMonthTotal());
+
+        tracker.onGather(day(2019, 6, 2, 12), Arrays.asList(
+                new BWEntry(day(2019, 6, 2, 0), "1 GB", "35 GB"),
+                new BWEntry(day(2019, 6, 1, 0), "1 GB", "20 GB")));
+        assertEquals(BWUnits.parse("55 GB"), tracker.getMonthTotal());
+        assertEquals(Arrays.asList("threshold", "daily"), tracker.alerts);
+
+        // projected usage far beyond the quota from day 3
+        tracker.onGather(day(2019, 6, 3, 0), Collections.singletonList(new BWEntry(day(2019, 6, 3, 0), "1 GB", "1 GB")));
+        assertEquals(Arrays.asList("threshold", "daily", "projection"), tracker.alerts);
+
+        // a new month starts over
+        tracker.onGather(day(2019, 7, 1, 12), Collections.singletonList(new BWEntry(day(2019, 7, 1, 0), "1 GB", "5 GB")));
+        assertEquals(BWUnits.parse("5 GB"), tracker.getMonthTotal());
+    }
+}
@@ -0,0 +1,106 @@
+import com.google.gson.JsonParser;
+import dk.matzon.bwusage.application.service.ReportGeneratorImpl;
+import dk.matzon.bwusage.domain.ReportGenerator;
+import dk.matzon.bwusage.domain.Repository;
+import dk.matzon.bwusage.domain.model.BWEntry;
+import dk.matzon.bwusage.domain.model.BWHistoricalEntry;
+import dk.matzon.bwusage.infrastructure.persistence.BWEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.BWHistoricalEntryRepositoryImpl;
+import dk.matzon.bwusage.infrastructure.persistence.HibernateUtil;
+import org.apache.commons.lang3.time.DateUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by Brian Matzon <brian@matzon.dk>.
+ */
+public class RebuildReportsTest {
+
+    private static Date time(int _year, int _month, int _day, int _hour) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(_year, _month - 1, _day, _hour, 0);
+        return calendar.getTime();
+    }
+
+    private static int entries(File _report) throws Exception {
+        return new JsonParser().parse(new String(Files.readAllBytes(_report.toPath()), StandardCharsets.UTF_8)).getAsJsonArray().size();
+    }
+
+    private static void store(Repository<BWEntry> repository, Repository<BWHistoricalEntry> historicalRepository) {
+        List<BWEntry> entries = new ArrayList<>();
+        List<BWHistoricalEntry> historicalEntries = new ArrayList<>();
+        for (Date day = time(2005, 1, 1, 0); day.before(time(2005, 4, 1, 0)); day = DateUtils.addDays(day, 1)) {
+            entries.add(new BWEntry(day, "1 GB", "10 GB"));
+            for (int hour = 0; hour < 24; hour += 6) {
+                historicalEntries.add(new BWHistoricalEntry(DateUtils.addHours(day, hour), hour + " MB", hour * 10 + " MB"));
+            }
+        }
+        repository.saveAllDistinct(entries);
+        historicalRepository.saveAllDistinct(historicalEntries);
+    }
+
+    @Test
+    void testRebuildsEveryDayAndMonth(@TempDir Path _dir) throws Exception {
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        store(repository, historicalRepository);
+
+        Properties properties = new Properties();
+        properties.setProperty("reportgenerator.dir", _dir.toString());
+        properties.setProperty("reportgenerator.rebuild.threads", "4");
+        ReportGeneratorImpl reportGenerator = new ReportGeneratorImpl(null, repository, historicalRepository, properties);
+        assertTrue(reportGenerator.rebuildReports() >= 90 + 3);
+
+        assertEquals(31, entries(new File(_dir.toFile(), "2005-1.json")));
+        assertEquals(28, entries(new File(_dir.toFile(), "2005-2.json")));
+        assertEquals(31, entries(new File(_dir.toFile(), "2005-3.json")));
+        assertEquals(4, entries(new File(_dir.toFile(), "2005-1-1.json")));
+        assertEquals(4, entries(new File(_dir.toFile(), "2005-3-31.json")));
+        assertFalse(new File(_dir.toFile(), "2005-4.json").exists());
+    }
+
+    @Test
+    void testFailedScanKeepsReports(@TempDir Path _dir) throws Exception {
+        // fails part way through February 2005, like a scan losing its connection
+        Repository<BWEntry> repository = new BWEntryRepositoryImpl(HibernateUtil.getSessionFactory()) {
+            @Override
+            public boolean scan(Date _from, Date _to, Consumer<BWEntry> _consumer) {
+                super.scan(_from, time(2005, 2, 14, 0), _consumer);
+                return false;
+            }
+        };
+        Repository<BWHistoricalEntry> historicalRepository = new BWHistoricalEntryRepositoryImpl(HibernateUtil.getSessionFactory());
+        store(repository, historicalRepository);
+        File all = new File(_dir.toFile(), "all.json");
+        Files.write(all.toPath(), "[]".getBytes(StandardCharsets.UTF_8));
+        File february = new File(_dir.toFile(), "2005-2.json");
+        Files.write(february.toPath(), "[]".getBytes(StandardCharsets.UTF_8));
+
+        Properties properties = new Properties();
+        properties.setProperty("reportgenerator.dir", _dir.toString());
+        properties.setProperty("reportgenerator.maxerrorcount", "5");
+        ReportGeneratorImpl reportGenerator = new ReportGeneratorImpl(null, repository, historicalRepository, properties);
+        reportGenerator.rebuildReports();
+
+        // the months before the failure are rebuilt, the one it stopped in is left as it was
+        assertEquals(31, entries(new File(_dir.toFile(), "2005-1.json")));
+        assertEquals(0, entries(february));
+        assertFalse(new File(_dir.toFile(), "2005-3.json").exists());
+        assertEquals(4, entries(new File(_dir.toFile(), "2005-3-31.json")));
+
+        reportGenerator.generateReport(ReportGenerator.REPORT_TYPE.ALL);
+        assertEquals(0, entries(all));
+        // no temporary files left behind
+        assertEquals(Collections.emptyList(), Arrays.asList(_dir.toFile().list((_directory, _name) -> _name.endsWith(".tmp"))));
+    }
+}